@@ -5,6 +5,7 @@ import ru.nilsson03.library.bukkit.file.BukkitDirectory;
 import ru.nilsson03.library.bukkit.file.FileRepository;
 import ru.nilsson03.library.bukkit.integration.Integration;
 import ru.nilsson03.library.bukkit.notify.PlayerNotificationService;
+import ru.nilsson03.library.bukkit.persistense.block.BlockPersistence;
 import ru.nilsson03.library.bukkit.scheduler.TaskScheduler;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
 
@@ -50,6 +51,10 @@ public abstract class NPlugin extends JavaPlugin {
         try {
             disable();
             fileRepository.unregister();
+            BlockPersistence.shutdownAll(this);
+            if (taskScheduler != null) {
+                taskScheduler.shutdown();
+            }
             ConsoleLogger.unregister(this);
             getLogger().info(getDescription().getName() + " disabled!");
         } catch (Exception e) {
@@ -0,0 +1,82 @@
+package ru.nilsson03.library.alt.top;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Строка формата топа, разобранная один раз на текст и плейсхолдеры {number}, {player} и {value}.
+ * Отрисовка строки выполняется одним проходом без поиска и замены.
+ */
+final class TopLineTemplate {
+
+    private static final String[] PLACEHOLDERS = {"{number}", "{player}", "{value}"};
+    private static final int NUMBER = 0;
+    private static final int PLAYER = 1;
+    private static final int VALUE = 2;
+
+    private final String[] literals;
+    private final int[] placeholders;
+    private final int literalLength;
+
+    private TopLineTemplate(String[] literals, int[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    static TopLineTemplate compile(String format) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> placeholders = new ArrayList<>();
+        int start = 0;
+        int position = 0;
+        while (position < format.length()) {
+            int placeholder = placeholderAt(format, position);
+            if (placeholder < 0) {
+                position++;
+                continue;
+            }
+            literals.add(format.substring(start, position));
+            placeholders.add(placeholder);
+            position += PLACEHOLDERS[placeholder].length();
+            start = position;
+        }
+        literals.add(format.substring(start));
+
+        int[] placeholderArray = new int[placeholders.size()];
+        for (int i = 0; i < placeholderArray.length; i++) {
+            placeholderArray[i] = placeholders.get(i);
+        }
+        return new TopLineTemplate(literals.toArray(new String[0]), placeholderArray);
+    }
+
+    String render(int rank, String name, long value) {
+        StringBuilder builder = new StringBuilder(literalLength + 32);
+        builder.append(literals[0]);
+        for (int i = 0; i < placeholders.length; i++) {
+            switch (placeholders[i]) {
+                case NUMBER -> builder.append(rank);
+                case PLAYER -> builder.append(name);
+                case VALUE -> builder.append(value);
+                default -> throw new IllegalStateException();
+            }
+            builder.append(literals[i + 1]);
+        }
+        return builder.toString();
+    }
+
+    private static int placeholderAt(String format, int position) {
+        if (format.charAt(position) != '{') {
+            return -1;
+        }
+        for (int i = 0; i < PLACEHOLDERS.length; i++) {
+            if (format.startsWith(PLACEHOLDERS[i], position)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
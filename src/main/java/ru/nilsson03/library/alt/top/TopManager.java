@@ -1,53 +1,264 @@
 package ru.nilsson03.library.alt.top;
 
 import ru.nilsson03.library.NPlugin;
+import ru.nilsson03.library.bukkit.scheduler.ScheduledTask;
 import ru.nilsson03.library.bukkit.scheduler.TaskScheduler;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+import ru.nilsson03.library.collection.RankedSkipList;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.function.ToLongFunction;
-import java.util.stream.Collectors;
 
 public class TopManager<K, V> {
 
+    private static final long EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final int RENDER_CACHE_LIMIT = 64;
+    private static final String EMPTY_LINE = "Пусто";
+    private static final Duration SNAPSHOT_SAVE_DELAY = Duration.ofSeconds(30);
+
     private final NPlugin plugin;
 
     private final LinkedHashMap<Long, V> topStorage;
+    private final RankedSkipList<K> ranking;
+    private final Map<K, V> values;
     private final Function<V, K> keyExtractor;
     private final ToLongFunction<V> valueExtractor;
     private final Function<K, String> nameFormatter;
+    private final TopView<K, V> liveView;
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final Map<String, TopLineTemplate> templates = new ConcurrentHashMap<>();
+    private final Map<RenderKey, RenderedLines> renderCache = new ConcurrentHashMap<>();
+    private final int limit;
 
     private final TaskScheduler taskScheduler;
     private TopScheduler scheduler;
+    private volatile TopView<K, V> view;
+    // Изменяется в потоке пересчёта, в асинхронном режиме читатели получают индекс из опубликованного снимка
+    private TopRankIndex rankIndex;
+    private volatile ExecutorService executor;
+    private volatile ScheduledTask snapshotSave;
+    private boolean publishPending;
+    private long version;
+    private long topStorageVersion = -1;
+    private File snapshotFile;
+    private Function<K, String> keyEncoder;
+    private long savedVersion = -1;
 
     public TopManager(NPlugin plugin,
             Function<V, K> keyExtractor,
             ToLongFunction<V> valueExtractor,
             Function<K, String> nameFormatter) {
+        this(plugin, keyExtractor, valueExtractor, nameFormatter, 0);
+    }
+
+    /**
+     * Создаёт топ, хранящий только limit лучших записей. При обновлении лучшие записи отбираются
+     * ограниченной кучей за O(n log limit), а места остальных записей определяются по очкам
+     * через {@link #getRankOf(Object)}.
+     *
+     * @param limit количество хранимых мест, 0 - хранить все записи
+     */
+    public TopManager(NPlugin plugin,
+            Function<V, K> keyExtractor,
+            ToLongFunction<V> valueExtractor,
+            Function<K, String> nameFormatter,
+            int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Top limit cant be negative!");
+        }
         this.plugin = plugin;
+        this.limit = limit;
         this.keyExtractor = keyExtractor;
         this.valueExtractor = valueExtractor;
         this.nameFormatter = nameFormatter;
         this.topStorage = new LinkedHashMap<>();
+        this.ranking = new RankedSkipList<>();
+        this.values = new HashMap<>();
+        this.liveView = new LiveView();
+        this.view = liveView;
         this.taskScheduler = plugin.taskScheduler();
     }
 
+    /**
+     * Приводит топ в соответствие с коллекцией: переставляются только записи с изменившимися значениями,
+     * отсутствующие в коллекции записи удаляются. Полная сортировка не выполняется.
+     * В асинхронном режиме коллекция копируется, а топ пересчитывается в отдельном потоке.
+     */
     public void updateTop(Collection<V> collection) {
-        topStorage.clear();
-        List<V> sorted = collection.stream()
-                .sorted(Comparator.comparingLong(valueExtractor).reversed())
-                .toList();
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            List<V> copy = new ArrayList<>(collection);
+            executor.execute(() -> {
+                applyTop(copy);
+                publish();
+            });
+            return;
+        }
+        applyTop(collection);
+        view = liveView;
+    }
+
+    /**
+     * Добавляет запись в топ или обновляет её значение за O(log n).
+     * В асинхронном режиме изменение появится в следующем опубликованном снимке.
+     * В ограниченном топе запись, вытесненная за пределы топа, удаляется.
+     */
+    public void update(V value) {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.execute(() -> {
+                applyUpdate(value);
+                schedulePublish();
+            });
+            return;
+        }
+        applyUpdate(value);
+        view = liveView;
+    }
+
+    /**
+     * Удаляет запись из топа за O(log n).
+     * В асинхронном режиме изменение появится в следующем опубликованном снимке.
+     * Освободившееся место ограниченного топа заполняется при следующем {@link #updateTop(Collection)}.
+     *
+     * @return true, если запись была в топе
+     */
+    public boolean remove(K key) {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            boolean present = view.getRank(key) != -1;
+            executor.execute(() -> {
+                applyRemove(key);
+                schedulePublish();
+            });
+            return present;
+        }
+        boolean removed = applyRemove(key);
+        view = liveView;
+        return removed;
+    }
+
+    /**
+     * Включает сохранение снимков топа в файл и сразу загружает ранее сохранённый снимок.
+     * Восстанавливаются только ключи и очки: записи по месту до первого пересчёта равны null.
+     * Чтобы записи были доступны сразу, используйте {@link #withSnapshotFile(File, Function, Function, BiFunction)}.
+     *
+     * @param keyEncoder преобразует ключ в строку для записи в файл
+     * @param keyDecoder восстанавливает ключ из строки
+     */
+    public TopManager<K, V> withSnapshotFile(File file, Function<K, String> keyEncoder, Function<String, K> keyDecoder) {
+        return withSnapshotFile(file, keyEncoder, keyDecoder, null);
+    }
+
+    /**
+     * Включает сохранение снимков топа в файл и сразу загружает ранее сохранённый снимок.
+     * Если топ ещё пуст, он заполняется восстановленными местами: {@link #update(Object)} и {@link #remove(Object)}
+     * изменяют восстановленный топ, а первый {@link #updateTop(Collection)} приводит его в соответствие с данными.
+     * В асинхронном режиме снимок записывается не чаще раза в {@code SNAPSHOT_SAVE_DELAY} после публикаций,
+     * иначе - при {@link #stopUpdater()} и {@link #saveSnapshot()}.
+     *
+     * @param keyEncoder    преобразует ключ в строку для записи в файл
+     * @param keyDecoder    восстанавливает ключ из строки
+     * @param valueRestorer восстанавливает запись по ключу и очкам или null, если записи восстанавливать не нужно
+     */
+    public TopManager<K, V> withSnapshotFile(File file, Function<K, String> keyEncoder, Function<String, K> keyDecoder,
+                                             BiFunction<K, Long, V> valueRestorer) {
+        this.snapshotFile = Objects.requireNonNull(file, "Snapshot file cant be null!");
+        this.keyEncoder = Objects.requireNonNull(keyEncoder, "Key encoder cant be null!");
+        if (!file.exists()) {
+            return this;
+        }
+
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.execute(() -> {
+                restoreSnapshot(file, keyDecoder, valueRestorer);
+                publish();
+            });
+            return this;
+        }
+        restoreSnapshot(file, keyDecoder, valueRestorer);
+        view = liveView;
+        return this;
+    }
+
+    /**
+     * Записывает текущий топ в файл снимка, если он изменился после предыдущей записи.
+     * В асинхронном режиме запись выполняется в потоке пересчёта по опубликованному снимку,
+     * в синхронном - сразу, поэтому вызывайте метод из потока, который обновляет топ.
+     */
+    public void saveSnapshot() {
+        if (executor == null) {
+            writeSnapshot();
+        } else {
+            requestSnapshotSave();
+        }
+    }
+
+    /**
+     * Записывает снимок в файл. Записи из разных потоков выполняются по очереди, чтобы не использовать
+     * один временный файл одновременно.
+     */
+    private synchronized void writeSnapshot() {
+        TopView<K, V> current = view;
+        if (snapshotFile == null || current.getVersion() == savedVersion) {
+            return;
+        }
 
-        for (int i = 0; i < sorted.size(); i++) {
-            topStorage.put((long) (i + 1), sorted.get(i));
-            ConsoleLogger.debug("baselibrary", "Added to top: rank %d, value %d", i + 1,
-                    valueExtractor.applyAsLong(sorted.get(i)));
+        TopView<K, V> snapshot = current == liveView ? TopSnapshot.of(ranking, values, version, rankIndex) : current;
+        try {
+            TopSnapshotFile.write(snapshotFile, snapshot, keyEncoder);
+            savedVersion = snapshot.getVersion();
+        } catch (IOException | RuntimeException e) {
+            ConsoleLogger.warn(plugin, "Failed to save top snapshot %s: %s", snapshotFile.getPath(), e.getMessage());
         }
     }
 
+    /**
+     * Заполняет пустой топ местами из файла снимка. Файл читается целиком до изменения топа,
+     * поэтому повреждённый снимок не оставляет топ заполненным частично.
+     */
+    private void restoreSnapshot(File file, Function<String, K> keyDecoder, BiFunction<K, Long, V> valueRestorer) {
+        if (!ranking.isEmpty()) {
+            return;
+        }
+
+        Map<K, Long> restored = new LinkedHashMap<>();
+        try {
+            TopSnapshotFile.read(file, keyDecoder, (key, score) -> {
+                if (limit == 0 || restored.size() < limit) {
+                    restored.put(key, score);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            ConsoleLogger.warn(plugin, "Failed to restore top snapshot %s: %s", file.getPath(), e.getMessage());
+            return;
+        }
+        if (restored.isEmpty()) {
+            return;
+        }
+
+        restored.forEach((key, score) -> {
+            ranking.update(key, score);
+            values.put(key, valueRestorer != null ? valueRestorer.apply(key, score) : null);
+        });
+        version++;
+        savedVersion = version;
+        ConsoleLogger.info(plugin, "Restored %s top entries from %s", restored.size(), file.getName());
+    }
+
     public void startUpdater(Supplier<Collection<V>> dataProvider, Duration interval, Duration delay) {
 
         if (scheduler != null)
@@ -58,7 +269,45 @@ public class TopManager<K, V> {
         scheduler.startUpdater(taskScheduler.createTask(() -> {
             Collection<V> currentData = dataProvider.get();
             updateTop(currentData);
-        }).withDelay(delay)
+        }).withName("TopManager update")
+                .withDelay(delay)
+                .withInterval(interval)
+                .schedule());
+    }
+
+    /**
+     * Запускает обновление, при котором данные собираются в основном потоке, а топ пересчитывается
+     * в отдельном потоке и публикуется неизменяемым снимком. Пока пересчёт не закончен, читатели
+     * получают предыдущий снимок. Если пересчёт не успевает за интервалом, лишние запуски пропускаются.
+     */
+    public void startAsyncUpdater(Supplier<Collection<V>> dataProvider, Duration interval, Duration delay) {
+
+        if (scheduler != null)
+            stopUpdater();
+
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, plugin.getName() + " TopManager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (view == liveView) {
+            view = TopSnapshot.of(ranking, values, version, rankIndex);
+        }
+
+        scheduler = new TopScheduler(plugin);
+
+        scheduler.startUpdater(taskScheduler.createTask(() -> {
+            if (!refreshQueued.compareAndSet(false, true)) {
+                return;
+            }
+            List<V> currentData = new ArrayList<>(dataProvider.get());
+            executor.execute(() -> {
+                refreshQueued.set(false);
+                applyTop(currentData);
+                publish();
+            });
+        }).withName("TopManager update")
+                .withDelay(delay)
                 .withInterval(interval)
                 .schedule());
     }
@@ -71,73 +320,412 @@ public class TopManager<K, V> {
             return;
         }
         scheduler.stopUpdater();
+        stopExecutor();
+        saveSnapshot();
     }
 
     public V getPlayerByRank(int rank) {
-        return topStorage.get((long) rank);
+        return view.getByRank(rank);
     }
 
     public long getPlayerRank(K key) {
-        return topStorage.entrySet()
-                .stream()
-                .filter(entry -> keyExtractor.apply(entry.getValue()).equals(key))
-                .mapToLong(Map.Entry::getKey)
-                .findFirst()
-                .orElse(-1);
+        return view.getRank(key);
+    }
+
+    /**
+     * Возвращает место записи. Для записей, не вошедших в ограниченный топ, место определяется по очкам
+     * среди всех записей последнего обновления: количество записей с большими очками плюс один.
+     * В асинхронном режиме индекс берётся из того же снимка, что и места вошедших в топ записей.
+     *
+     * @return место или -1, если запись не найдена
+     */
+    public long getRankOf(V value) {
+        TopView<K, V> current = view;
+        long rank = current.getRank(keyExtractor.apply(value));
+        if (rank != -1) {
+            return rank;
+        }
+        TopRankIndex index = current == liveView ? rankIndex : ((TopSnapshot<K, V>) current).rankIndex();
+        return index != null ? index.rankOf(valueExtractor.applyAsLong(value)) : -1;
     }
 
     public List<V> getTopPlayers(int limit) {
-        return topStorage.entrySet()
-                .stream()
-                .limit(limit)
-                .map(Map.Entry::getValue)
-                .collect(Collectors.toList());
+        List<Map.Entry<Integer, V>> range = view.getRange(1, limit);
+        List<V> topPlayers = new ArrayList<>(range.size());
+        for (Map.Entry<Integer, V> entry : range) {
+            topPlayers.add(entry.getValue());
+        }
+        return topPlayers;
     }
 
     public List<Map.Entry<Integer, V>> getTopPlayersWithPositions(int limit) {
-        List<Map.Entry<Integer, V>> topPlayers = new ArrayList<>();
-
+        TopView<K, V> current = view;
         // Если limit = -1, показываем всех игроков
-        int count = (limit == -1) ? topStorage.size() : Math.min(limit, topStorage.size());
+        return current.getRange(1, (limit == -1) ? current.size() : limit);
+    }
+
+    /**
+     * Возвращает записи с местами с from по to включительно за O(log n + to - from).
+     */
+    public List<Map.Entry<Integer, V>> getPlayersInRange(int from, int to) {
+        return view.getRange(from, to);
+    }
+
+    /**
+     * Возвращает текущее представление топа. В асинхронном режиме это неизменяемый снимок,
+     * все чтения из которого согласованы между собой.
+     */
+    public TopView<K, V> getView() {
+        return view;
+    }
+
+    /**
+     * Возвращает строки топа по формату с плейсхолдерами {number}, {player} и {value}.
+     * Формат разбирается один раз, а готовые строки кэшируются до следующего изменения топа,
+     * поэтому повторные вызовы между обновлениями не форматируют строки заново.
+     *
+     * @return новый список строк, который можно изменять
+     */
+    public List<String> getTopPlayersFormatted(String format, int limit) {
+        TopView<K, V> current = view;
+        RenderKey key = new RenderKey(format, limit);
+        RenderedLines cached = renderCache.get(key);
+        if (cached != null && cached.version == current.getVersion()) {
+            return new ArrayList<>(cached.lines);
+        }
+
+        List<String> lines = render(current, format, limit);
+        if (renderCache.size() >= RENDER_CACHE_LIMIT) {
+            renderCache.clear();
+        }
+        renderCache.put(key, new RenderedLines(current.getVersion(), lines));
+        return new ArrayList<>(lines);
+    }
 
-        for (int i = 0; i < count; i++) {
-            long rank = i + 1;
-            V value = topStorage.get(rank);
-            if (value != null) {
-                topPlayers.add(new AbstractMap.SimpleEntry<>(i + 1, value));
+    /**
+     * Возвращает все записи по местам. Карта перестраивается обходом топа только при первом обращении
+     * после изменений и изменяется на месте, поэтому для чтения из разных потоков используйте {@link #getView()}.
+     */
+    public LinkedHashMap<Long, V> getTopStorage() {
+        TopView<K, V> current = view;
+        if (topStorageVersion != current.getVersion()) {
+            topStorage.clear();
+            for (Map.Entry<Integer, V> entry : current.getRange(1, current.size())) {
+                topStorage.put((long) entry.getKey(), entry.getValue());
             }
+            topStorageVersion = current.getVersion();
         }
-        return topPlayers;
+        return this.topStorage;
     }
 
-    public List<String> getTopPlayersFormatted(String format, int limit) {
+    private List<String> render(TopView<K, V> current, String format, int limit) {
         List<String> top = new ArrayList<>();
-        List<Map.Entry<Integer, V>> topPlayers = getTopPlayersWithPositions(limit);
+        int count = Math.min(limit, current.size());
 
         // Если нет игроков в топе, возвращаем пустой список
-        if (topPlayers.isEmpty()) {
-            return top;
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+
+        TopLineTemplate template = templates.get(format);
+        if (template == null) {
+            template = TopLineTemplate.compile(format);
+            if (templates.size() >= RENDER_CACHE_LIMIT) {
+                templates.clear();
+            }
+            templates.put(format, template);
         }
 
         for (int i = 0; i < limit; i++) {
-            if (i < topPlayers.size()) {
-                Map.Entry<Integer, V> entry = topPlayers.get(i);
-                K key = keyExtractor.apply(entry.getValue());
-                String name = nameFormatter.apply(key);
-                long value = valueExtractor.applyAsLong(entry.getValue());
-
-                top.add(format
-                        .replace("{number}", String.valueOf(entry.getKey()))
-                        .replace("{player}", name)
-                        .replace("{value}", String.valueOf(value)));
+            if (i < count) {
+                int rank = i + 1;
+                String name = nameFormatter.apply(current.getKey(rank));
+                top.add(template.render(rank, name, current.getScore(rank)));
             } else {
-                top.add("Пусто");
+                top.add(EMPTY_LINE);
             }
         }
-        return top;
+        return Collections.unmodifiableList(top);
     }
 
-    public LinkedHashMap<Long, V> getTopStorage() {
-        return this.topStorage;
+    private void applyTop(Collection<V> collection) {
+        if (limit > 0) {
+            collection = selectTop(collection);
+        }
+
+        Set<K> present = new HashSet<>(collection.size() * 2);
+        int moved = 0;
+        boolean changed = false;
+        for (V value : collection) {
+            K key = keyExtractor.apply(value);
+            present.add(key);
+            if (values.put(key, value) != value) {
+                changed = true;
+            }
+            if (ranking.update(key, valueExtractor.applyAsLong(value))) {
+                moved++;
+            }
+        }
+
+        int removed = 0;
+        Iterator<K> iterator = values.keySet().iterator();
+        while (iterator.hasNext()) {
+            K key = iterator.next();
+            if (!present.contains(key)) {
+                iterator.remove();
+                ranking.remove(key);
+                removed++;
+            }
+        }
+
+        if (changed || moved > 0 || removed > 0) {
+            version++;
+        }
+        ConsoleLogger.debug("baselibrary", "Top updated: %d entries, %d moved, %d removed", ranking.size(), moved, removed);
+    }
+
+    private void applyUpdate(V value) {
+        K key = keyExtractor.apply(value);
+        boolean replaced = values.put(key, value) != value;
+        if (ranking.update(key, valueExtractor.applyAsLong(value)) || replaced) {
+            version++;
+        }
+        if (limit > 0 && ranking.size() > limit) {
+            K evicted = ranking.keyAt(ranking.size());
+            ranking.remove(evicted);
+            values.remove(evicted);
+        }
+    }
+
+    /**
+     * Отбирает limit лучших записей ограниченной кучей за O(n log limit) и строит индекс мест по очкам всех записей.
+     * Очки сортируются здесь же, в потоке пересчёта, чтобы читатели индекса не выполняли сортировку.
+     * При равных очках выше остаётся запись, идущая в коллекции раньше.
+     *
+     * @return лучшие записи по убыванию очков
+     */
+    @SuppressWarnings("unchecked")
+    private List<V> selectTop(Collection<V> collection) {
+        int capacity = Math.min(limit, collection.size());
+        Object[] heapValues = new Object[capacity];
+        long[] heapScores = new long[capacity];
+        int[] heapOrder = new int[capacity];
+        long[] scores = new long[collection.size()];
+        int size = 0;
+        int order = 0;
+
+        for (V value : collection) {
+            long score = valueExtractor.applyAsLong(value);
+            if (order == scores.length) {
+                scores = Arrays.copyOf(scores, order * 2 + 1);
+            }
+            scores[order] = score;
+
+            if (size < capacity) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!worse(score, order, heapScores[parent], heapOrder[parent])) {
+                        break;
+                    }
+                    heapValues[i] = heapValues[parent];
+                    heapScores[i] = heapScores[parent];
+                    heapOrder[i] = heapOrder[parent];
+                    i = parent;
+                }
+                heapValues[i] = value;
+                heapScores[i] = score;
+                heapOrder[i] = order;
+            } else if (capacity > 0 && score > heapScores[0]) {
+                siftDown(heapValues, heapScores, heapOrder, size, value, score, order);
+            }
+            order++;
+        }
+
+        if (order != scores.length) {
+            scores = Arrays.copyOf(scores, order);
+        }
+        Arrays.sort(scores);
+        rankIndex = new TopRankIndex(scores);
+
+        Object[] selected = new Object[size];
+        while (size > 0) {
+            selected[--size] = heapValues[0];
+            if (size > 0) {
+                siftDown(heapValues, heapScores, heapOrder, size, heapValues[size], heapScores[size], heapOrder[size]);
+            }
+        }
+        return (List<V>) Arrays.asList(selected);
+    }
+
+    /**
+     * Помещает запись в корень кучи худших записей и опускает её на своё место.
+     */
+    private static void siftDown(Object[] values, long[] scores, int[] orders, int size,
+                                 Object value, long score, int order) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && worse(scores[right], orders[right], scores[child], orders[child])) {
+                child = right;
+            }
+            if (!worse(scores[child], orders[child], score, order)) {
+                break;
+            }
+            values[i] = values[child];
+            scores[i] = scores[child];
+            orders[i] = orders[child];
+            i = child;
+        }
+        values[i] = value;
+        scores[i] = score;
+        orders[i] = order;
+    }
+
+    private static boolean worse(long score, int order, long otherScore, int otherOrder) {
+        return score < otherScore || (score == otherScore && order > otherOrder);
+    }
+
+    private boolean applyRemove(K key) {
+        if (!values.containsKey(key)) {
+            return false;
+        }
+        values.remove(key);
+        ranking.remove(key);
+        version++;
+        return true;
+    }
+
+    /**
+     * Публикует снимок после накопленных одиночных изменений. Выполняется в потоке пересчёта.
+     */
+    private void schedulePublish() {
+        if (!publishPending) {
+            publishPending = true;
+            executor.execute(this::publish);
+        }
+    }
+
+    /**
+     * Строит новый снимок и подменяет им текущий одной записью volatile-поля. Запись в файл планируется
+     * с задержкой, чтобы серия публикаций дала одну запись. Выполняется в потоке пересчёта.
+     */
+    private void publish() {
+        publishPending = false;
+        if (view.getVersion() != version) {
+            view = TopSnapshot.of(ranking, values, version, rankIndex);
+            scheduleSnapshotSave();
+        }
+    }
+
+    /**
+     * Передаёт запись снимка в поток пересчёта. После остановки пересчёта ничего не делает:
+     * последний снимок записывает {@link #stopUpdater()}.
+     */
+    private void requestSnapshotSave() {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(this::writeSnapshot);
+        } catch (RejectedExecutionException e) {
+            // Пересчёт уже останавливается
+        }
+    }
+
+    private void scheduleSnapshotSave() {
+        ScheduledTask pending = snapshotSave;
+        if (snapshotFile == null || (pending != null && !pending.isCompleted() && !pending.isCancelled())) {
+            return;
+        }
+        snapshotSave = taskScheduler.createTask(this::requestSnapshotSave)
+                .withName("TopManager snapshot")
+                .withDelay(SNAPSHOT_SAVE_DELAY)
+                .async()
+                .schedule();
+    }
+
+    /**
+     * Дожидается завершения пересчёта и возвращает топ в синхронный режим.
+     */
+    private void stopExecutor() {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                ConsoleLogger.warn(plugin, "Top recomputation of the %s plugin did not finish in time", plugin.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ScheduledTask pending = snapshotSave;
+        if (pending != null) {
+            pending.cancel();
+            snapshotSave = null;
+        }
+        this.executor = null;
+        refreshQueued.set(false);
+        publishPending = false;
+        view = liveView;
+    }
+
+    private record RenderKey(String format, int limit) {
+    }
+
+    private record RenderedLines(long version, List<String> lines) {
+    }
+
+    /**
+     * Представление, читающее топ напрямую. Используется в синхронном режиме.
+     */
+    private class LiveView implements TopView<K, V> {
+
+        @Override
+        public V getByRank(int rank) {
+            K key = ranking.keyAt(rank);
+            return key != null ? values.get(key) : null;
+        }
+
+        @Override
+        public long getRank(K key) {
+            return ranking.rankOf(key);
+        }
+
+        @Override
+        public K getKey(int rank) {
+            return ranking.keyAt(rank);
+        }
+
+        @Override
+        public long getScore(int rank) {
+            K key = ranking.keyAt(rank);
+            return key != null ? ranking.scoreOf(key, 0) : 0;
+        }
+
+        @Override
+        public List<Map.Entry<Integer, V>> getRange(int from, int to) {
+            List<Map.Entry<Integer, V>> range = new ArrayList<>();
+            for (RankedSkipList.Entry<K> entry : ranking.range(from, to)) {
+                range.add(new AbstractMap.SimpleEntry<>(entry.rank(), values.get(entry.key())));
+            }
+            return range;
+        }
+
+        @Override
+        public int size() {
+            return ranking.size();
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
     }
 }
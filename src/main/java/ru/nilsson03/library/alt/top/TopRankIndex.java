@@ -0,0 +1,35 @@
+package ru.nilsson03.library.alt.top;
+
+/**
+ * Компактный индекс мест по очкам всех записей, включая не вошедшие в ограниченный топ.
+ * Хранит только отсортированный по возрастанию массив очков и после создания не изменяется,
+ * поэтому читается из любого потока без блокировок.
+ */
+final class TopRankIndex {
+
+    private final long[] scores;
+
+    /**
+     * @param scores очки всех записей, отсортированные по возрастанию
+     */
+    TopRankIndex(long[] scores) {
+        this.scores = scores;
+    }
+
+    /**
+     * Возвращает место записи с указанными очками: количество записей с большими очками плюс один.
+     */
+    long rankOf(long score) {
+        int low = 0;
+        int high = scores.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (scores[mid] <= score) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return scores.length - low + 1;
+    }
+}
@@ -0,0 +1,117 @@
+package ru.nilsson03.library.alt.top;
+
+import ru.nilsson03.library.collection.RankedSkipList;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок топа. Создаётся целиком до публикации, поэтому читатели
+ * не блокируются и никогда не видят частично построенный топ.
+ */
+public final class TopSnapshot<K, V> implements TopView<K, V> {
+
+    private static final TopSnapshot<?, ?> EMPTY = new TopSnapshot<>(new Object[0], new Object[0], new long[0],
+            Collections.emptyMap(), 0, null);
+
+    private final Object[] keys;
+    private final Object[] values;
+    private final long[] scores;
+    private final Map<K, Integer> ranks;
+    private final long version;
+    private final TopRankIndex rankIndex;
+
+    private TopSnapshot(Object[] keys, Object[] values, long[] scores, Map<K, Integer> ranks, long version,
+                        TopRankIndex rankIndex) {
+        this.keys = keys;
+        this.values = values;
+        this.scores = scores;
+        this.ranks = ranks;
+        this.version = version;
+        this.rankIndex = rankIndex;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> TopSnapshot<K, V> empty() {
+        return (TopSnapshot<K, V>) EMPTY;
+    }
+
+    /**
+     * Снимает копию топа обходом списка по порядку за O(n).
+     *
+     * @param rankIndex индекс мест по очкам, построенный вместе с топом, или null
+     */
+    static <K, V> TopSnapshot<K, V> of(RankedSkipList<K> ranking, Map<K, V> values, long version,
+                                       TopRankIndex rankIndex) {
+        int size = ranking.size();
+        Object[] keys = new Object[size];
+        Object[] snapshotValues = new Object[size];
+        long[] scores = new long[size];
+        Map<K, Integer> ranks = new HashMap<>(size * 2);
+        int[] index = {0};
+        ranking.forEachInRange(1, size, (key, score) -> {
+            int i = index[0]++;
+            keys[i] = key;
+            snapshotValues[i] = values.get(key);
+            scores[i] = score;
+            ranks.put(key, i + 1);
+        });
+        return new TopSnapshot<>(keys, snapshotValues, scores, ranks, version, rankIndex);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getByRank(int rank) {
+        return rank >= 1 && rank <= values.length ? (V) values[rank - 1] : null;
+    }
+
+    @Override
+    public long getRank(K key) {
+        Integer rank = ranks.get(key);
+        return rank != null ? rank : -1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Map.Entry<Integer, V>> getRange(int from, int to) {
+        from = Math.max(from, 1);
+        to = Math.min(to, values.length);
+        List<Map.Entry<Integer, V>> range = new ArrayList<>(Math.max(0, to - from + 1));
+        for (int rank = from; rank <= to; rank++) {
+            range.add(new AbstractMap.SimpleImmutableEntry<>(rank, (V) values[rank - 1]));
+        }
+        return range;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public K getKey(int rank) {
+        return rank >= 1 && rank <= keys.length ? (K) keys[rank - 1] : null;
+    }
+
+    @Override
+    public long getScore(int rank) {
+        return rank >= 1 && rank <= scores.length ? scores[rank - 1] : 0;
+    }
+
+    /**
+     * @return индекс мест по очкам, опубликованный вместе со снимком, или null
+     */
+    TopRankIndex rankIndex() {
+        return rankIndex;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+}
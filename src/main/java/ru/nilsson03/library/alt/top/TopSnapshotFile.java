@@ -0,0 +1,135 @@
+package ru.nilsson03.library.alt.top;
+
+import ru.nilsson03.library.collection.RankedSkipList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Двоичный файл снимка топа для быстрого запуска. Хранит только ключи и очки по местам
+ * и время окончания периода, к которому относится снимок.
+ * Файл записывается во временный и заменяет предыдущий атомарным переименованием.
+ *
+ * <pre>
+ * int магическое число, byte версия, long конец периода, int количество,
+ * далее для каждого места строка ключа (UTF) и long очки
+ * </pre>
+ * Файлы первой версии не содержат конца периода и читаются как снимок без сброса.
+ */
+final class TopSnapshotFile {
+
+    private static final int MAGIC = 0x544F5053;
+    private static final byte VERSION = 2;
+    private static final byte VERSION_WITHOUT_PERIOD = 1;
+    static final long NO_RESET = Long.MAX_VALUE;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private TopSnapshotFile() {
+        throw new AssertionError("Utility class should not be instantiated");
+    }
+
+    static <K> void write(File file, TopView<K, ?> view, Function<K, String> keyEncoder) throws IOException {
+        int size = view.size();
+        write(file, NO_RESET, size, out -> {
+            for (int rank = 1; rank <= size; rank++) {
+                out.writeUTF(keyEncoder.apply(view.getKey(rank)));
+                out.writeLong(view.getScore(rank));
+            }
+        });
+    }
+
+    /**
+     * Записывает ключи и очки списка по порядку мест.
+     *
+     * @param periodEnd время окончания периода снимка или {@link #NO_RESET}
+     */
+    static <K> void write(File file, RankedSkipList<K> ranking, Function<K, String> keyEncoder, long periodEnd)
+            throws IOException {
+        write(file, periodEnd, ranking.size(), out -> {
+            try {
+                ranking.forEachInRange(1, ranking.size(), (key, score) -> {
+                    try {
+                        out.writeUTF(keyEncoder.apply(key));
+                        out.writeLong(score);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private static void write(File file, long periodEnd, int size, EntryWriter entries) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory.getPath());
+        }
+
+        File tempFile = new File(directory, file.getName() + TEMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(periodEnd);
+            out.writeInt(size);
+            entries.write(out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Читает записи снимка по порядку мест.
+     *
+     * @param consumer получает ключ и очки каждого места
+     * @return время окончания периода снимка или {@link #NO_RESET}
+     */
+    static <K> long read(File file, Function<String, K> keyDecoder, ObjLongConsumer<K> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a top snapshot file");
+            }
+            byte fileVersion = in.readByte();
+            if (fileVersion != VERSION && fileVersion != VERSION_WITHOUT_PERIOD) {
+                throw new IOException("Unsupported top snapshot version " + fileVersion);
+            }
+            long periodEnd = fileVersion == VERSION ? in.readLong() : NO_RESET;
+
+            int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("Invalid top snapshot size " + size);
+            }
+            for (int i = 0; i < size; i++) {
+                K key = keyDecoder.apply(in.readUTF());
+                consumer.accept(key, in.readLong());
+            }
+            return periodEnd;
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
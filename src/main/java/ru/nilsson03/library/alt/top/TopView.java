@@ -0,0 +1,42 @@
+package ru.nilsson03.library.alt.top;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Представление топа для чтения. Места нумеруются с 1.
+ */
+public interface TopView<K, V> {
+
+    /**
+     * @return запись на месте или null, если место вне топа
+     */
+    V getByRank(int rank);
+
+    /**
+     * @return место записи или -1, если её нет в топе
+     */
+    long getRank(K key);
+
+    /**
+     * @return ключ записи на месте или null, если место вне топа
+     */
+    K getKey(int rank);
+
+    /**
+     * @return очки записи на месте или 0, если место вне топа
+     */
+    long getScore(int rank);
+
+    /**
+     * @return записи с местами с from по to включительно
+     */
+    List<Map.Entry<Integer, V>> getRange(int from, int to);
+
+    int size();
+
+    /**
+     * Номер версии топа. Увеличивается при каждом изменении порядка или состава записей.
+     */
+    long getVersion();
+}
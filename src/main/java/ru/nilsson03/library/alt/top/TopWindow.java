@@ -0,0 +1,65 @@
+package ru.nilsson03.library.alt.top;
+
+import java.time.DayOfWeek;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * Период, за который накапливаются очки оконного топа. Периоды выровнены по календарю:
+ * час - по началу часа, день - по полуночи, неделя - по полуночи понедельника.
+ */
+public enum TopWindow {
+
+    HOURLY {
+        @Override
+        ZonedDateTime periodStart(ZonedDateTime time) {
+            return time.truncatedTo(ChronoUnit.HOURS);
+        }
+
+        @Override
+        ZonedDateTime nextPeriodStart(ZonedDateTime periodStart) {
+            return periodStart.plusHours(1);
+        }
+    },
+    DAILY {
+        @Override
+        ZonedDateTime periodStart(ZonedDateTime time) {
+            return time.truncatedTo(ChronoUnit.DAYS);
+        }
+
+        @Override
+        ZonedDateTime nextPeriodStart(ZonedDateTime periodStart) {
+            return periodStart.plusDays(1);
+        }
+    },
+    WEEKLY {
+        @Override
+        ZonedDateTime periodStart(ZonedDateTime time) {
+            return time.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).truncatedTo(ChronoUnit.DAYS);
+        }
+
+        @Override
+        ZonedDateTime nextPeriodStart(ZonedDateTime periodStart) {
+            return periodStart.plusWeeks(1);
+        }
+    },
+    ALL_TIME {
+        @Override
+        ZonedDateTime periodStart(ZonedDateTime time) {
+            return null;
+        }
+
+        @Override
+        ZonedDateTime nextPeriodStart(ZonedDateTime periodStart) {
+            return null;
+        }
+    };
+
+    /**
+     * @return начало периода, содержащего момент, или null, если период не сбрасывается
+     */
+    abstract ZonedDateTime periodStart(ZonedDateTime time);
+
+    abstract ZonedDateTime nextPeriodStart(ZonedDateTime periodStart);
+}
@@ -0,0 +1,259 @@
+package ru.nilsson03.library.alt.top;
+
+import ru.nilsson03.library.collection.RankedSkipList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Топы за несколько периодов, которые ведутся по одному потоку изменений очков.
+ * Каждое изменение за O(log n) применяется к текущему периоду каждого окна,
+ * поэтому все окна всегда упорядочены и не пересортировываются.
+ * По окончании периода текущий топ становится предыдущим, а новый начинается пустым - сброс выполняется за O(1).
+ * <p>
+ * Методы синхронизированы на экземпляре, поэтому очки можно начислять из асинхронных обработчиков,
+ * а читать из основного потока. Списки мест возвращаются копиями и не меняются вместе с топом.
+ * Очки окон хранятся в памяти: чтобы периоды не обнулялись при перезапуске, сохраняйте их
+ * {@link #saveSnapshot(File, Function)} и загружайте {@link #loadSnapshot(File, Function)}
+ * или заполняйте окна из своего хранилища через {@link #seed(TopWindow, Map)}.
+ *
+ * @param <K> тип ключей
+ */
+public class WindowedTop<K> {
+
+    private final Clock clock;
+    private final Map<TopWindow, Window> windows = new EnumMap<>(TopWindow.class);
+
+    public WindowedTop(ZoneId zone, TopWindow... windows) {
+        this(Clock.system(zone), windows);
+    }
+
+    WindowedTop(Clock clock, TopWindow... windows) {
+        this.clock = Objects.requireNonNull(clock, "Clock cant be null!");
+        if (windows.length == 0) {
+            throw new IllegalArgumentException("At least one top window is required!");
+        }
+        long now = clock.millis();
+        for (TopWindow window : windows) {
+            this.windows.put(window, new Window(window, now));
+        }
+    }
+
+    /**
+     * Прибавляет очки ключу во всех окнах.
+     *
+     * @param delta изменение очков, может быть отрицательным
+     */
+    public synchronized void addScore(K key, long delta) {
+        long now = clock.millis();
+        for (Window window : windows.values()) {
+            window.rotate(now);
+            window.current.update(key, window.current.scoreOf(key, 0) + delta);
+        }
+    }
+
+    /**
+     * Удаляет ключ из текущих периодов всех окон.
+     */
+    public synchronized void remove(K key) {
+        long now = clock.millis();
+        for (Window window : windows.values()) {
+            window.rotate(now);
+            window.current.remove(key);
+        }
+    }
+
+    /**
+     * @return место ключа в текущем периоде окна или -1, если у ключа нет очков за период
+     */
+    public synchronized long getRank(TopWindow window, K key) {
+        return window(window).current.rankOf(key);
+    }
+
+    public synchronized long getScore(TopWindow window, K key) {
+        return window(window).current.scoreOf(key, 0);
+    }
+
+    /**
+     * Возвращает места с from по to включительно текущего периода окна за O(log n + to - from).
+     */
+    public synchronized List<RankedSkipList.Entry<K>> getRange(TopWindow window, int from, int to) {
+        return window(window).current.range(from, to);
+    }
+
+    /**
+     * Возвращает места с from по to включительно завершившегося периода окна, например, для выдачи наград.
+     * Если в предыдущем периоде не было изменений, список пуст.
+     */
+    public synchronized List<RankedSkipList.Entry<K>> getPreviousRange(TopWindow window, int from, int to) {
+        RankedSkipList<K> previous = window(window).previous;
+        return previous != null ? previous.range(from, to) : Collections.emptyList();
+    }
+
+    public synchronized int size(TopWindow window) {
+        return window(window).current.size();
+    }
+
+    /**
+     * @return время до сброса окна или null для окна, которое не сбрасывается
+     */
+    public synchronized Duration getTimeUntilReset(TopWindow window) {
+        Window state = window(window);
+        return state.resetAt != Long.MAX_VALUE ? Duration.ofMillis(Math.max(0, state.resetAt - clock.millis())) : null;
+    }
+
+    /**
+     * Заменяет очки текущего периода окна, например, значениями, посчитанными по своему хранилищу при запуске.
+     */
+    public synchronized void seed(TopWindow window, Map<K, Long> scores) {
+        Window state = window(window);
+        state.current = new RankedSkipList<>();
+        scores.forEach(state.current::update);
+    }
+
+    /**
+     * Записывает текущий и предыдущий периоды каждого окна в файлы директории.
+     * Под блокировкой снимается копия текущего периода, а запись в файлы выполняется без неё.
+     * Завершившийся период после сброса не изменяется и записывается без копирования.
+     *
+     * @param keyEncoder преобразует ключ в строку для записи в файл
+     */
+    public void saveSnapshot(File directory, Function<K, String> keyEncoder) throws IOException {
+        Map<TopWindow, SavedWindow<K>> saved = new EnumMap<>(TopWindow.class);
+        synchronized (this) {
+            for (TopWindow type : windows.keySet()) {
+                Window state = window(type);
+                RankedSkipList<K> current = new RankedSkipList<>();
+                state.current.forEachInRange(1, state.current.size(), current::update);
+                saved.put(type, new SavedWindow<>(current, state.resetAt, state.previous, state.periodStart(state.resetAt)));
+            }
+        }
+
+        for (Map.Entry<TopWindow, SavedWindow<K>> entry : saved.entrySet()) {
+            SavedWindow<K> window = entry.getValue();
+            TopSnapshotFile.write(currentFile(directory, entry.getKey()), window.current(), keyEncoder, window.resetAt());
+            File previousFile = previousFile(directory, entry.getKey());
+            if (window.previous() != null) {
+                TopSnapshotFile.write(previousFile, window.previous(), keyEncoder, window.previousEnd());
+            } else {
+                Files.deleteIfExists(previousFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Загружает периоды окон, сохранённые {@link #saveSnapshot(File, Function)}. Сохранённый период
+     * восстанавливается как текущий, если ещё не закончился, и как предыдущий, если закончился
+     * непосредственно перед текущим. Более старые периоды отбрасываются. Вызывайте до начисления очков:
+     * загруженные периоды заменяют текущие.
+     *
+     * @param keyDecoder восстанавливает ключ из строки
+     */
+    public synchronized void loadSnapshot(File directory, Function<String, K> keyDecoder) throws IOException {
+        for (TopWindow type : windows.keySet()) {
+            Window state = window(type);
+            long currentStart = state.periodStart(state.resetAt);
+            RankedSkipList<K> previous = null;
+
+            File currentFile = currentFile(directory, type);
+            if (currentFile.exists()) {
+                RankedSkipList<K> saved = new RankedSkipList<>();
+                long periodEnd = TopSnapshotFile.read(currentFile, keyDecoder, saved::update);
+                if (periodEnd == state.resetAt) {
+                    state.current = saved;
+                } else if (periodEnd == currentStart) {
+                    previous = saved;
+                }
+            }
+
+            File previousFile = previousFile(directory, type);
+            if (previous == null && previousFile.exists()) {
+                RankedSkipList<K> saved = new RankedSkipList<>();
+                if (TopSnapshotFile.read(previousFile, keyDecoder, saved::update) == currentStart) {
+                    previous = saved;
+                }
+            }
+            if (previous != null) {
+                state.previous = previous;
+            }
+        }
+    }
+
+    private static File currentFile(File directory, TopWindow window) {
+        return new File(directory, window.name().toLowerCase(Locale.ROOT) + ".top");
+    }
+
+    private static File previousFile(File directory, TopWindow window) {
+        return new File(directory, window.name().toLowerCase(Locale.ROOT) + ".previous.top");
+    }
+
+    private Window window(TopWindow window) {
+        Window state = windows.get(window);
+        if (state == null) {
+            throw new IllegalArgumentException("Top window " + window + " is not enabled!");
+        }
+        state.rotate(clock.millis());
+        return state;
+    }
+
+    private record SavedWindow<K>(RankedSkipList<K> current, long resetAt, RankedSkipList<K> previous, long previousEnd) {
+    }
+
+    private final class Window {
+
+        private final TopWindow type;
+        private RankedSkipList<K> current = new RankedSkipList<>();
+        private RankedSkipList<K> previous;
+        private long resetAt;
+
+        private Window(TopWindow type, long now) {
+            this.type = type;
+            this.resetAt = nextReset(now);
+        }
+
+        /**
+         * Начинает новый период, если текущий закончился. Если закончился и следующий за ним,
+         * предыдущий период считается пустым.
+         */
+        private void rotate(long now) {
+            if (now < resetAt) {
+                return;
+            }
+
+            long nextReset = nextReset(now);
+            boolean skipped = nextReset(resetAt) < nextReset;
+            previous = skipped ? null : current;
+            current = new RankedSkipList<>();
+            resetAt = nextReset;
+        }
+
+        /**
+         * @return начало периода, заканчивающегося в resetAt, или {@link Long#MIN_VALUE} для окна без сброса
+         */
+        private long periodStart(long resetAt) {
+            if (resetAt == Long.MAX_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            ZonedDateTime end = ZonedDateTime.ofInstant(Instant.ofEpochMilli(resetAt), clock.getZone());
+            return type.periodStart(end.minusNanos(1)).toInstant().toEpochMilli();
+        }
+
+        private long nextReset(long now) {
+            ZonedDateTime start = type.periodStart(ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), clock.getZone()));
+            return start != null ? type.nextPeriodStart(start).toInstant().toEpochMilli() : Long.MAX_VALUE;
+        }
+    }
+}
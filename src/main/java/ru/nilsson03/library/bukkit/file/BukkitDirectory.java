@@ -3,11 +3,19 @@ package ru.nilsson03.library.bukkit.file;
 import com.google.common.base.Preconditions;
 import ru.nilsson03.library.NPlugin;
 import ru.nilsson03.library.bukkit.file.configuration.BukkitConfig;
+import ru.nilsson03.library.bukkit.file.configuration.ConfigDiff;
+import ru.nilsson03.library.bukkit.file.configuration.ConfigFileState;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
 
+import org.bukkit.configuration.file.FileConfiguration;
+
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class BukkitDirectory {
 
@@ -17,6 +25,9 @@ public class BukkitDirectory {
     private final Map<String, BukkitConfig> cached = new HashMap<>();
 
     private final NPlugin plugin;
+    private FileRepository repository;
+    private DirectoryWatcher watcher;
+    private final List<Consumer<BukkitConfig>> reloadListeners = new CopyOnWriteArrayList<>();
 
     protected BukkitDirectory(NPlugin plugin, File directory, Map<String, BukkitConfig> listOfFiles) {
         this.plugin = plugin;
@@ -38,6 +49,7 @@ public class BukkitDirectory {
             return;
 
         this.cached.remove(fileName);
+        unindex(fileName);
     }
 
     public void removeAndDeleteConfig(BukkitConfig config) {
@@ -56,6 +68,7 @@ public class BukkitDirectory {
         }
 
         this.cached.put(name, config);
+        index(name);
     }
 
     @Nullable
@@ -65,6 +78,7 @@ public class BukkitDirectory {
         if (!containsFileWithName(fileName)) {
             BukkitConfig config = new BukkitConfig(plugin, this.file, fileName, false);
             this.cached.put(fileName, config);
+            index(fileName);
             ConsoleLogger.debug(plugin, "The config file %s is added to directory", fileName);
             return config;
         } else {
@@ -106,6 +120,7 @@ public class BukkitDirectory {
 
     /**
      * Перезагружает все файлы конфигурации в кэше директории.
+     * Файлы, которые не изменились с последней загрузки, не читаются и не разбираются.
      * Логирует результат операции одним сообщением.
      */
     public void reloadAll() {
@@ -116,11 +131,14 @@ public class BukkitDirectory {
 
         int totalFiles = cached.size();
         int reloadedFiles = 0;
+        int changedFiles = 0;
         int failedFiles = 0;
 
         for (BukkitConfig config : cached.values()) {
             try {
-                config.reloadConfiguration();
+                if (!config.reloadIfChanged().isEmpty()) {
+                    changedFiles++;
+                }
                 reloadedFiles++;
             } catch (Exception e) {
                 failedFiles++;
@@ -129,8 +147,8 @@ public class BukkitDirectory {
             }
         }
 
-        ConsoleLogger.info(plugin, "Reloaded %d/%d config files in directory %s (failed: %d)",
-                         reloadedFiles, totalFiles, directoryName, failedFiles);
+        ConsoleLogger.info(plugin, "Reloaded %d/%d config files in directory %s (changed: %d, failed: %d)",
+                         reloadedFiles, totalFiles, directoryName, changedFiles, failedFiles);
     }
 
     /**
@@ -162,8 +180,10 @@ public class BukkitDirectory {
     }
 
     public void addAll(Map<String, BukkitConfig> files) {
+        new ArrayList<>(cached.keySet()).forEach(this::unindex);
         cached.clear();
         cached.putAll(files);
+        files.keySet().forEach(this::index);
     }
 
     public void saveAll() {
@@ -174,6 +194,104 @@ public class BukkitDirectory {
         return new ArrayList<>(cached.values());
     }
 
+    /**
+     * Включает автоматическую перезагрузку изменённых на диске файлов директории.
+     * Серия изменений одного файла в пределах debounce приводит к одной перезагрузке,
+     * файл разбирается вне основного потока, а конфигурация подменяется в основном потоке.
+     *
+     * @param debounce время без новых изменений файла, после которого он перезагружается
+     * @return true, если наблюдение за директорией запущено
+     */
+    public synchronized boolean enableHotReload(Duration debounce) {
+        Objects.requireNonNull(debounce, "debounce cannot be null");
+        if (watcher != null) {
+            return true;
+        }
+
+        try {
+            watcher = new DirectoryWatcher(plugin, this, debounce);
+        } catch (IOException e) {
+            ConsoleLogger.error(plugin, "Failed to watch directory %s: %s", directoryName, e.getMessage());
+            return false;
+        }
+        watcher.start();
+        ConsoleLogger.debug(plugin, "Hot reload enabled for directory: %s", directoryName);
+        return true;
+    }
+
+    public synchronized void disableHotReload() {
+        if (watcher == null) {
+            return;
+        }
+        watcher.close();
+        watcher = null;
+        ConsoleLogger.debug(plugin, "Hot reload disabled for directory: %s", directoryName);
+    }
+
+    public synchronized boolean isHotReloadEnabled() {
+        return watcher != null;
+    }
+
+    /**
+     * Добавляет слушатель, который вызывается в основном потоке после автоматической перезагрузки файла,
+     * например, для пересборки зависящих от конфигурации кэшей. Изменённые ключи доступны
+     * через {@link BukkitConfig#getLastDiff()}.
+     */
+    public void addReloadListener(Consumer<BukkitConfig> listener) {
+        reloadListeners.add(Objects.requireNonNull(listener, "listener cannot be null"));
+    }
+
+    public void removeReloadListener(Consumer<BukkitConfig> listener) {
+        reloadListeners.remove(listener);
+    }
+
+    /**
+     * Подменяет конфигурацию файла, разобранную наблюдателем, и уведомляет слушателей, если значения изменились.
+     * Вызывается в основном потоке.
+     */
+    void applyReload(String fileName, FileConfiguration fileConfiguration, ConfigFileState state) {
+        BukkitConfig config = cached.get(fileName);
+        if (config == null) {
+            return;
+        }
+
+        ConfigDiff diff = config.applyConfiguration(fileConfiguration, state);
+        if (diff.isEmpty()) {
+            return;
+        }
+        ConsoleLogger.debug(plugin, "Hot reloaded config %s in directory %s (%d keys changed)",
+                fileName, directoryName, diff.keys().size());
+        for (Consumer<BukkitConfig> listener : reloadListeners) {
+            try {
+                listener.accept(config);
+            } catch (Exception e) {
+                ConsoleLogger.warn(plugin, "Reload listener failed for config %s: %s", fileName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Привязывает директорию к репозиторию, чтобы имена её файлов учитывались в индексе имён репозитория.
+     */
+    void attach(@Nullable FileRepository repository) {
+        this.repository = repository;
+        if (repository != null) {
+            cached.keySet().forEach(this::index);
+        }
+    }
+
+    private void index(String fileName) {
+        if (repository != null) {
+            repository.indexFileName(fileName, this);
+        }
+    }
+
+    private void unindex(String fileName) {
+        if (repository != null) {
+            repository.unindexFileName(fileName, this);
+        }
+    }
+
     public String getPath() {
         return path;
     }
@@ -0,0 +1,120 @@
+package ru.nilsson03.library.bukkit.file;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import ru.nilsson03.library.NPlugin;
+import ru.nilsson03.library.bukkit.file.configuration.BukkitConfig;
+import ru.nilsson03.library.bukkit.file.configuration.ConfigFileState;
+import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Загрузчик конфигураций директории. Разбор YAML и построение {@link BukkitConfig} для большого количества файлов
+ * выполняются параллельно в ограниченном пуле fork-join, который создаётся на время загрузки.
+ * Ошибка одного файла не прерывает загрузку остальных и возвращается в результате,
+ * в том числе ошибка синтаксиса YAML: такой файл не регистрируется пустой конфигурацией.
+ */
+final class ConfigLoader {
+
+    private static final int PARALLEL_THRESHOLD = 8;
+    private static final int MAX_PARALLELISM = 8;
+
+    private ConfigLoader() {
+        throw new AssertionError("Utility class should not be instantiated");
+    }
+
+    /**
+     * @param loaded   загруженные конфигурации по имени файла в порядке переданных файлов
+     * @param failures ошибки загрузки по файлу
+     */
+    record Result(Map<String, BukkitConfig> loaded, Map<File, Exception> failures) {
+    }
+
+    static Result load(NPlugin plugin, File directory, List<File> files, boolean autoParseEnabled) {
+        BukkitConfig[] configs = new BukkitConfig[files.size()];
+        Exception[] errors = new Exception[files.size()];
+
+        int parallelism = Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors());
+        if (files.size() < PARALLEL_THRESHOLD || parallelism < 2) {
+            for (int i = 0; i < files.size(); i++) {
+                load(plugin, directory, files, autoParseEnabled, configs, errors, i);
+            }
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                int index = i;
+                tasks.add(() -> {
+                    load(plugin, directory, files, autoParseEnabled, configs, errors, index);
+                    return null;
+                });
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism, workerFactory(plugin), null, false);
+            try {
+                pool.invokeAll(tasks);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        Map<String, BukkitConfig> loaded = new LinkedHashMap<>();
+        Map<File, Exception> failures = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (configs[i] != null) {
+                loaded.put(configs[i].getName(), configs[i]);
+            } else if (errors[i] != null) {
+                failures.put(files.get(i), errors[i]);
+            }
+        }
+        return new Result(loaded, failures.isEmpty() ? Collections.emptyMap() : failures);
+    }
+
+    private static void load(NPlugin plugin, File directory, List<File> files, boolean autoParseEnabled,
+                             BukkitConfig[] configs, Exception[] errors, int index) {
+        File file = files.get(index);
+        try {
+            // Пустой файл загружается через FileHelper, который заполняет его конфигурацией по умолчанию из плагина
+            configs[index] = file.length() == 0
+                    ? new BukkitConfig(plugin, directory, file.getName(), autoParseEnabled)
+                    : parse(plugin, directory, file, autoParseEnabled);
+        } catch (Exception e) {
+            errors[index] = e;
+            ConsoleLogger.error(plugin, "Failed to load config %s: %s", file.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Разбирает файл, не подавляя ошибки синтаксиса, как это делает {@link YamlConfiguration#loadConfiguration(File)}.
+     */
+    private static BukkitConfig parse(NPlugin plugin, File directory, File file, boolean autoParseEnabled)
+            throws IOException, InvalidConfigurationException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        ConfigFileState state = ConfigFileState.of(file, content);
+        YamlConfiguration configuration = new YamlConfiguration();
+        configuration.loadFromString(new String(content, StandardCharsets.UTF_8));
+        return new BukkitConfig(plugin, directory, file.getName(), autoParseEnabled, configuration, state);
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory workerFactory(NPlugin plugin) {
+        AtomicInteger counter = new AtomicInteger();
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(plugin.getName() + " Config Loader #" + counter.incrementAndGet());
+            thread.setContextClassLoader(plugin.getClass().getClassLoader());
+            return thread;
+        };
+    }
+}
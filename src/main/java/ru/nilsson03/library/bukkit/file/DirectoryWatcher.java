@@ -0,0 +1,138 @@
+package ru.nilsson03.library.bukkit.file;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import ru.nilsson03.library.NPlugin;
+import ru.nilsson03.library.bukkit.file.configuration.ConfigFileState;
+import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+
+/**
+ * Наблюдатель за файлами директории. Поток наблюдателя только получает события файловой системы,
+ * серия изменений одного файла сливается в одну перезагрузку через {@code debounce} планировщика.
+ * Файл разбирается в асинхронной задаче, а новая конфигурация подменяется в основном потоке,
+ * если содержимое файла отличается от загруженного, например, после собственного сохранения плагина.
+ * Перезагружаются только файлы, уже загруженные в директорию.
+ */
+final class DirectoryWatcher {
+
+    private final NPlugin plugin;
+    private final BukkitDirectory directory;
+    private final Duration debounce;
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    DirectoryWatcher(NPlugin plugin, BukkitDirectory directory, Duration debounce) throws IOException {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.debounce = debounce;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            directory.getFile().toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::watch, plugin.getName() + " Config Watcher (" + directory.getFile().getName() + ")");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            ConsoleLogger.warn(plugin, "Failed to close watcher of directory %s: %s", directory.getPath(), e.getMessage());
+        }
+    }
+
+    private void watch() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    plugin.taskScheduler().runOnMain(() -> directory.getCached()
+                            .forEach(config -> scheduleReload(config.getName())));
+                    continue;
+                }
+
+                String fileName = ((Path) event.context()).getFileName().toString();
+                if (fileName.endsWith(".yml") || fileName.endsWith(".yaml")) {
+                    scheduleReload(fileName);
+                }
+            }
+
+            if (!key.reset()) {
+                ConsoleLogger.warn(plugin, "Directory %s is no longer accessible, hot reload stopped", directory.getPath());
+                return;
+            }
+        }
+    }
+
+    private void scheduleReload(String fileName) {
+        if (closed) {
+            return;
+        }
+        plugin.taskScheduler().createTask(() -> reload(fileName))
+                .withName("Config hot reload")
+                .withDelay(debounce)
+                .debounce(new ReloadKey(this, fileName))
+                .async()
+                .schedule();
+    }
+
+    /**
+     * Разбирает изменившийся файл вне основного потока. Файл с ошибками синтаксиса не применяется,
+     * чтобы незаконченная правка не стёрла загруженную конфигурацию.
+     */
+    private void reload(String fileName) {
+        File file = new File(directory.getFile(), fileName);
+        if (closed || !file.isFile()) {
+            return;
+        }
+
+        YamlConfiguration configuration = new YamlConfiguration();
+        ConfigFileState state;
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            state = ConfigFileState.of(file, content);
+            configuration.loadFromString(new String(content, StandardCharsets.UTF_8));
+        } catch (IOException | InvalidConfigurationException e) {
+            ConsoleLogger.warn(plugin, "Failed to hot reload config %s: %s", file.getPath(), e.getMessage());
+            return;
+        }
+
+        plugin.taskScheduler().runOnMain(() -> {
+            if (!closed) {
+                directory.applyReload(fileName, configuration, state);
+            }
+        });
+    }
+
+    private record ReloadKey(DirectoryWatcher watcher, String fileName) {
+    }
+}
@@ -26,6 +26,19 @@ public class FileHelper {
      * @return Загруженная FileConfiguration.
      */
     public static FileConfiguration loadConfiguration(NPlugin plugin, File dataFolder, String jarResourcePath) {
+        return YamlConfiguration.loadConfiguration(prepareConfigFile(plugin, dataFolder, jarResourcePath));
+    }
+
+    /**
+     * Создаёт файл конфигурации, если он отсутствует или пуст, копируя конфигурацию по умолчанию из плагина.
+     * Файл не читается, поэтому вызывающий код может прочитать его содержимое один раз.
+     *
+     * @param plugin          Плагин.
+     * @param dataFolder      Директория с файлами.
+     * @param jarResourcePath Имя файла.
+     * @return Файл конфигурации.
+     */
+    public static File prepareConfigFile(NPlugin plugin, File dataFolder, String jarResourcePath) {
         Objects.requireNonNull(plugin, "plugin cannot be null");
         Objects.requireNonNull(dataFolder, "dataFolder cannot be null");
         validateFileName(jarResourcePath);
@@ -51,7 +64,7 @@ public class FileHelper {
             }
         }
 
-        return YamlConfiguration.loadConfiguration(configFile);
+        return configFile;
     }
 
     public static Set<FileConfiguration> loadConfigurations(NPlugin plugin, File dataFolder, String... fileName) {
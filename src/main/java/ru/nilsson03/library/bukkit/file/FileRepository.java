@@ -5,6 +5,7 @@ import ru.nilsson03.library.NPlugin;
 import ru.nilsson03.library.bukkit.file.configuration.BukkitConfig;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -16,10 +17,16 @@ public class FileRepository {
     private final NPlugin plugin;
     private final Map<String, BukkitDirectory> directories;
     private final Set<String> excludedPaths;
+    private final Map<File, Exception> loadFailures;
+    private final Map<String, BukkitDirectory> nameIndex;
+    private final PathTrie excludedPathTrie;
 
     {
         directories = new ConcurrentHashMap<>();
         excludedPaths = ConcurrentHashMap.newKeySet();
+        loadFailures = new ConcurrentHashMap<>();
+        nameIndex = new ConcurrentHashMap<>();
+        excludedPathTrie = new PathTrie();
     }
 
     public static FileRepository of(NPlugin plugin) {
@@ -37,8 +44,15 @@ public class FileRepository {
 
     public void unregister() {
         if (initializationMap.containsKey(plugin)) {
+            directories.values().forEach(directory -> {
+                directory.disableHotReload();
+                directory.attach(null);
+            });
             directories.clear();
             excludedPaths.clear();
+            excludedPathTrie.clear();
+            loadFailures.clear();
+            nameIndex.clear();
             initializationMap.remove(plugin);
         }
     }
@@ -66,23 +80,29 @@ public class FileRepository {
             return Optional.empty();
         }
 
-        Map<String, BukkitConfig> files = loadFiles(directoryFile, true, false);
+        Map<String, BukkitConfig> files = loadFiles(directoryFile, null, true, false);
         BukkitDirectory bukkitDirectory = BukkitDirectory.of(plugin, directoryFile, files);
         directories.put(directory, bukkitDirectory);
+        bukkitDirectory.attach(this);
         return Optional.of(bukkitDirectory);
     }
 
-    private Map<String, BukkitConfig> loadFiles(File dir, boolean autoParseEnabled, boolean force) {
-        Map<String, BukkitConfig> result = new HashMap<>();
+    /**
+     * Отбирает yml-файлы директории и загружает их, при большом количестве файлов - параллельно.
+     * Файлы, которые не удалось загрузить, пропускаются и доступны через {@link #getLoadFailures()}.
+     */
+    private Map<String, BukkitConfig> loadFiles(File dir, @Nullable BukkitDirectory target, boolean autoParseEnabled, boolean force) {
         File[] directoryFiles = dir.listFiles();
         if (directoryFiles == null) {
             ConsoleLogger.debug(plugin, "No files found in directory: %s", dir.getPath());
-            return result;
+            return new HashMap<>();
         }
 
         ConsoleLogger.debug(plugin, "Loading files from directory: %s (found %d files)", 
                            dir.getPath(), directoryFiles.length);
 
+        String directoryPath = getRelativeDirectoryPath(dir);
+        List<File> filesToLoad = new ArrayList<>(directoryFiles.length);
         for (File file : directoryFiles) {
             if (file.isFile() && file.getName().endsWith(".yml")) {
                 String name = file.getName();
@@ -93,31 +113,49 @@ public class FileRepository {
                     continue;
                 }
                 
-                String relativePath = getRelativePathFromPluginRoot(file, dir);
+                String relativePath = directoryPath == null ? name
+                        : directoryPath.isEmpty() ? name : directoryPath + File.separator + name;
                 
                 ConsoleLogger.debug(plugin, "Processing file: %s (relative path: %s)", name, relativePath);
                 
-                if (shouldSkipContentParsing(file) && !force) {
+                if (!force && shouldSkipFileByPath(relativePath)) {
                     ConsoleLogger.debug(plugin, "Skipping load of %s (path: %s)", name, relativePath);
                     continue;
                 }
-                if (isFileExistsInAnyDirectory(name)) {
+                if (isFileExistsInAnyDirectory(name, target)) {
                     ConsoleLogger.warn(plugin, "Duplicate config %s found (path: %s)", name, relativePath);
                     continue;
                 }
                 
                 ConsoleLogger.debug(plugin, "Loading config: %s (path: %s)", name, relativePath);
-                result.put(name, new BukkitConfig(plugin, dir, name, autoParseEnabled));
+                filesToLoad.add(file);
             }
         }
-        
-        ConsoleLogger.debug(plugin, "Loaded %d configs from directory: %s", result.size(), dir.getPath());
-        return result;
+
+        ConfigLoader.Result result = ConfigLoader.load(plugin, dir, filesToLoad, autoParseEnabled);
+        filesToLoad.forEach(loadFailures::remove);
+        loadFailures.putAll(result.failures());
+        if (!result.failures().isEmpty()) {
+            ConsoleLogger.warn(plugin, "Failed to load %d of %d configs from directory: %s",
+                              result.failures().size(), filesToLoad.size(), dir.getPath());
+        }
+
+        ConsoleLogger.debug(plugin, "Loaded %d configs from directory: %s", result.loaded().size(), dir.getPath());
+        return new HashMap<>(result.loaded());
+    }
+
+    /**
+     * Получает ошибки последней загрузки файлов, которые не удалось загрузить.
+     *
+     * @return Ошибки загрузки по файлу
+     */
+    public Map<File, Exception> getLoadFailures() {
+        return Collections.unmodifiableMap(new HashMap<>(loadFailures));
     }
 
     public void loadFiles(BukkitDirectory directory, boolean autoParse) {
         Objects.requireNonNull(directory, "directory cannot be null");
-        Map<String, BukkitConfig> files = loadFiles(directory.getFile(), autoParse, true);
+        Map<String, BukkitConfig> files = loadFiles(directory.getFile(), directory, autoParse, true);
         directory.addAll(files);
         ConsoleLogger.debug(plugin, "Loaded %d configs from directory: %s", files.size(), directory.getPath());
     }
@@ -132,7 +170,7 @@ public class FileRepository {
             return Optional.empty();
         }
 
-        if (isFileExistsInAnyDirectory(fileName)) {
+        if (isFileExistsInAnyDirectory(fileName, null)) {
             ConsoleLogger.warn(plugin, "File %s already exists", fileName);
             return Optional.empty();
         }
@@ -153,19 +191,35 @@ public class FileRepository {
         }
     }
 
-    @Deprecated
-    private boolean shouldSkipContentParsing(File file) {
-        File parentDir = file.getParentFile();
-        if (shouldSkipFileByPath(file, parentDir)) {
-            return true;
-        }
-        
-        return false;
+    /**
+     * Проверяет по индексу имён, загружен ли файл с таким именем в какую-либо директорию, кроме указанной.
+     */
+    private boolean isFileExistsInAnyDirectory(String fileName, @Nullable BukkitDirectory except) {
+        BukkitDirectory owner = nameIndex.get(fileName);
+        return owner != null && owner != except;
     }
 
-    private boolean isFileExistsInAnyDirectory(String fileName) {
-        return directories.values().stream()
-                .anyMatch(dir -> dir.containsFileWithName(fileName));
+    /**
+     * Добавляет имя файла директории в индекс имён репозитория.
+     */
+    void indexFileName(String fileName, BukkitDirectory directory) {
+        nameIndex.putIfAbsent(fileName, directory);
+    }
+
+    /**
+     * Убирает имя файла директории из индекса. Если файл с таким именем есть в другой директории,
+     * индекс переходит к ней.
+     */
+    void unindexFileName(String fileName, BukkitDirectory directory) {
+        if (!nameIndex.remove(fileName, directory)) {
+            return;
+        }
+        for (BukkitDirectory other : directories.values()) {
+            if (other != directory && other.containsFileWithName(fileName)) {
+                nameIndex.putIfAbsent(fileName, other);
+                return;
+            }
+        }
     }
 
     /**
@@ -182,6 +236,7 @@ public class FileRepository {
         
         String normalizedPath = normalizePath(path);
         excludedPaths.add(normalizedPath);
+        excludedPathTrie.add(normalizedPath);
         ConsoleLogger.debug(plugin, "Added exclusion path: %s (normalized: %s)", path, normalizedPath);
     }
 
@@ -209,6 +264,7 @@ public class FileRepository {
             
             String normalizedPath = normalizePath(path);
             if (excludedPaths.add(normalizedPath)) {
+                excludedPathTrie.add(normalizedPath);
                 addedCount++;
                 ConsoleLogger.debug(plugin, "Added exclusion path: %s (normalized: %s)", path, normalizedPath);
             } else {
@@ -233,56 +289,42 @@ public class FileRepository {
     }
 
     /**
-     * Проверяет, должен ли файл быть исключен на основе его полного пути.
-     * Сравнивает точный путь файла с исключениями.
+     * Проверяет, должен ли файл быть исключен на основе его пути.
+     * Путь совпадает с исключением, если он равен исключенному пути или находится в исключенной папке.
+     * Проверка выполняется по префиксному дереву за длину пути.
      * 
-     * @param file Файл для проверки
-     * @param parentDirectory Родительская директория файла
+     * @param relativePath Путь файла относительно корня плагина
      * @return true если файл должен быть исключен
      */
-    private boolean shouldSkipFileByPath(File file, File parentDirectory) {
-        if (excludedPaths.isEmpty()) {
+    private boolean shouldSkipFileByPath(String relativePath) {
+        if (excludedPathTrie.isEmpty()) {
             return false;
         }
-        
-        // Получаем относительный путь от корня плагина
-        String relativePath = getRelativePathFromPluginRoot(file, parentDirectory);
-        String normalizedPath = normalizePath(relativePath);
-        
-        // Проверяем точное соответствие пути
-        if (excludedPaths.contains(normalizedPath)) {
-            ConsoleLogger.debug(plugin, "Skipping file by exact path exclusion: %s (normalized: %s)", 
-                              relativePath, normalizedPath);
+
+        String excludedPath = excludedPathTrie.match(normalizePath(relativePath));
+        if (excludedPath != null) {
+            ConsoleLogger.debug(plugin, "Skipping file by path exclusion: %s (excluded: %s)",
+                              relativePath, excludedPath);
             return true;
         }
-        
-        // Проверяем, находится ли файл в исключенной папке
-        for (String excludedPath : excludedPaths) {
-            if (normalizedPath.startsWith(excludedPath + File.separator) || 
-                normalizedPath.startsWith(excludedPath + "/")) {
-                ConsoleLogger.debug(plugin, "Skipping file by folder exclusion: %s (in folder: %s)", 
-                                  relativePath, excludedPath);
-                return true;
-            }
-        }
-        
         return false;
     }
 
     /**
-     * Получает относительный путь файла от корня плагина.
+     * Получает путь директории относительно корня плагина.
+     * Канонический путь вычисляется один раз на директорию, а не для каждого файла.
      * 
-     * @param file Файл
-     * @param parentDirectory Родительская директория
-     * @return Относительный путь
+     * @param directory Директория
+     * @return Относительный путь, пустая строка для корня плагина или null, если директория вне корня плагина
      */
-    private String getRelativePathFromPluginRoot(File file, File parentDirectory) {
+    @Nullable
+    private String getRelativeDirectoryPath(File directory) {
         try {
             String pluginRootPath = plugin.getDataFolder().getCanonicalPath();
-            String filePath = file.getCanonicalPath();
+            String directoryPath = directory.getCanonicalPath();
             
-            if (filePath.startsWith(pluginRootPath)) {
-                String relativePath = filePath.substring(pluginRootPath.length());
+            if (directoryPath.startsWith(pluginRootPath)) {
+                String relativePath = directoryPath.substring(pluginRootPath.length());
                 // Убираем начальный разделитель если есть
                 if (relativePath.startsWith(File.separator)) {
                     relativePath = relativePath.substring(File.separator.length());
@@ -290,12 +332,12 @@ public class FileRepository {
                 return relativePath;
             }
         } catch (Exception e) {
-            ConsoleLogger.warn(plugin, "Failed to get relative path for file %s: %s", 
-                              file.getName(), e.getMessage());
+            ConsoleLogger.warn(plugin, "Failed to get relative path for directory %s: %s", 
+                              directory.getName(), e.getMessage());
         }
         
-        // Fallback: используем имя файла если не удалось получить относительный путь
-        return file.getName();
+        // Fallback: файлы такой директории проверяются по имени
+        return null;
     }
 
     public Optional<BukkitConfig> getByName(BukkitDirectory directory, String fileName) {
@@ -334,6 +376,7 @@ public class FileRepository {
      */
     public void clearExcludedPaths() {
         excludedPaths.clear();
+        excludedPathTrie.clear();
         ConsoleLogger.debug(plugin, "Cleared all path exclusions");
     }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package ru.nilsson03.library.bukkit.file;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Префиксное дерево относительных путей по сегментам. Путь считается совпавшим, если он сам
+ * или одна из его родительских папок добавлены в дерево, поэтому проверка выполняется за длину пути
+ * независимо от количества добавленных путей.
+ */
+final class PathTrie {
+
+    private static final Pattern SEPARATOR = Pattern.compile("[/\\\\]+");
+
+    private final Node root = new Node();
+    private int size;
+
+    synchronized boolean add(String path) {
+        Node node = root;
+        for (String segment : segments(path)) {
+            node = node.children.computeIfAbsent(segment, k -> new Node());
+        }
+        if (node.terminal || node == root) {
+            return false;
+        }
+        node.terminal = true;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return добавленный путь, совпавший с путём или его родительской папкой, или null
+     */
+    synchronized String match(String path) {
+        Node node = root;
+        StringBuilder matched = new StringBuilder();
+        for (String segment : segments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+            if (matched.length() > 0) {
+                matched.append('/');
+            }
+            matched.append(segment);
+            if (node.terminal) {
+                return matched.toString();
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void clear() {
+        root.children.clear();
+        size = 0;
+    }
+
+    private static String[] segments(String path) {
+        String trimmed = path.strip();
+        int start = 0;
+        while (start < trimmed.length() && (trimmed.charAt(start) == '/' || trimmed.charAt(start) == '\\')) {
+            start++;
+        }
+        return start == trimmed.length() ? new String[0] : SEPARATOR.split(trimmed.substring(start));
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>(4);
+        private boolean terminal;
+    }
+}
@@ -1,17 +1,23 @@
 package ru.nilsson03.library.bukkit.file.configuration;
 
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import ru.nilsson03.library.NPlugin;
 import ru.nilsson03.library.bukkit.file.FileHelper;
 import ru.nilsson03.library.bukkit.file.configuration.impl.BukkitConfigurationImpl;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
 import ru.nilsson03.library.text.util.ReplaceData;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Objects;
 
@@ -26,12 +32,25 @@ public class BukkitConfig {
     private BukkitConfigurationImpl configuration;
     private FileConfiguration fileConfiguration;
     private final NPlugin plugin;
+    private volatile ConfigFileState fileState;
+    private ConfigDiff lastDiff = ConfigDiff.EMPTY;
 
     public BukkitConfig(NPlugin plugin, File directory, String fileName) {
         this(plugin, directory, fileName, true);
     }
 
     public BukkitConfig(NPlugin plugin, File directory, String fileName, boolean autoParseEnabled) {
+        this(plugin, directory, fileName, autoParseEnabled, null, null);
+    }
+
+    /**
+     * Создаёт конфигурацию из уже разобранного содержимого файла, не читая файл повторно.
+     *
+     * @param fileConfiguration разобранное содержимое файла или null, чтобы загрузить файл
+     * @param state             состояние файла, из которого прочитана конфигурация, или null, если оно неизвестно
+     */
+    public BukkitConfig(NPlugin plugin, File directory, String fileName, boolean autoParseEnabled,
+                        @Nullable FileConfiguration fileConfiguration, @Nullable ConfigFileState state) {
         if (plugin == null) {
             ConsoleLogger.debug("baselibrary", "Plugin cannot be null, class %s, plugin", getClass().getName());
             throw new IllegalArgumentException("plugin cannot be null, class " + getClass().getName());
@@ -59,13 +78,19 @@ public class BukkitConfig {
             throw new IllegalStateException("Failed to create directory: " + directory);
         }
 
-        try {
-            this.fileConfiguration = FileHelper.loadConfiguration(plugin, directory, processedFileName);
-        } catch (Exception e) {
-            ConsoleLogger.debug(plugin, "Failed to load configuration file %s, class %s, plugin %s", e.getMessage(), getClass().getName(), plugin.getName());
-            throw new IllegalStateException("Failed to load configuration file, class " + getClass().getName(), e);
+        if (fileConfiguration != null) {
+            this.fileConfiguration = fileConfiguration;
+            this.fileState = state;
+        } else {
+            try {
+                FileHelper.prepareConfigFile(plugin, directory, processedFileName);
+            } catch (Exception e) {
+                ConsoleLogger.debug(plugin, "Failed to load configuration file %s, class %s, plugin %s", e.getMessage(), getClass().getName(), plugin.getName());
+                throw new IllegalStateException("Failed to load configuration file, class " + getClass().getName(), e);
+            }
+            this.fileConfiguration = readConfiguration();
         }
-        this.configuration = new BukkitConfigurationImpl(plugin, processedFileName, fileConfiguration, autoParseEnabled);
+        this.configuration = new BukkitConfigurationImpl(plugin, processedFileName, this.fileConfiguration, autoParseEnabled);
     }
 
     public NPlugin getPlugin() {
@@ -97,13 +122,108 @@ public class BukkitConfig {
         return new BukkitConfigurationImpl(plugin, file.getName(), fileConfiguration, autoParseEnabled);
     }
 
+    /**
+     * Перезагружает конфигурацию из файла, даже если файл не изменился, и отбрасывает несохранённые изменения.
+     * Ошибки чтения и синтаксиса логируются, как при {@link YamlConfiguration#loadConfiguration(File)}.
+     *
+     * @see #reloadIfChanged()
+     */
     public void reloadConfiguration() {
-        FileConfiguration updatedConfiguration = FileHelper.reloadFile(getPlugin(), this);
-        updateFileConfiguration(updatedConfiguration);
+        if (!file.exists()) {
+            ConsoleLogger.warn(plugin, "Config file %s does not exist, cannot reload", name);
+            fileState = null;
+            return;
+        }
+
+        FileConfiguration previous = this.fileConfiguration;
+        FileConfiguration updatedConfiguration = readConfiguration();
+        replaceFileConfiguration(updatedConfiguration);
+        lastDiff = ConfigDiff.between(previous, updatedConfiguration);
+        ConsoleLogger.debug(plugin, "The file %s has been successfully reloaded from disk.", name);
+    }
+
+    /**
+     * Перезагружает конфигурацию из файла, только если его содержимое изменилось с последнего чтения или сохранения.
+     * Файл с прежними размером и временем изменения не читается, файл с прежним хэшем содержимого не разбирается,
+     * поэтому несохранённые изменения загруженной конфигурации в этих случаях остаются.
+     * Если файл содержит ошибки синтаксиса, загруженная конфигурация сохраняется.
+     *
+     * @return различия по ключам или {@link ConfigDiff#EMPTY}, если файл не изменился
+     * @throws IllegalStateException если файл не удалось прочитать или разобрать
+     */
+    public ConfigDiff reloadIfChanged() {
+        if (!file.exists()) {
+            ConsoleLogger.warn(plugin, "Config file %s does not exist, cannot reload", name);
+            return ConfigDiff.EMPTY;
+        }
+
+        ConfigFileState currentState = fileState;
+        if (currentState != null && currentState.matches(file)) {
+            return ConfigDiff.EMPTY;
+        }
+
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read configuration " + name, e);
+        }
+        ConfigFileState state = ConfigFileState.of(file, content);
+        if (state.sameContent(currentState)) {
+            fileState = state;
+            return ConfigDiff.EMPTY;
+        }
+
+        YamlConfiguration updatedConfiguration = new YamlConfiguration();
+        try {
+            updatedConfiguration.loadFromString(new String(content, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            throw new IllegalStateException("Configuration " + name + " contains format errors: " + e.getMessage(), e);
+        }
+        return applyConfiguration(updatedConfiguration, state);
+    }
+
+    /**
+     * Применяет конфигурацию, прочитанную из файла с указанным состоянием. Если содержимое файла
+     * совпадает с уже загруженным, конфигурация не подменяется.
+     *
+     * @param state состояние файла, из которого прочитана конфигурация, или null, если оно неизвестно
+     * @return различия по ключам с предыдущей конфигурацией
+     */
+    public ConfigDiff applyConfiguration(FileConfiguration fileConfiguration, @Nullable ConfigFileState state) {
+        Objects.requireNonNull(fileConfiguration, "configuration cannot be null");
+        if (state != null && state.sameContent(fileState)) {
+            fileState = state;
+            return ConfigDiff.EMPTY;
+        }
+
+        ConfigDiff diff = ConfigDiff.between(this.fileConfiguration, fileConfiguration);
+        replaceFileConfiguration(fileConfiguration);
+        fileState = state;
+        lastDiff = diff;
+        ConsoleLogger.debug(plugin, "The file %s has been reloaded from disk (added %d, removed %d, changed %d keys).",
+                name, diff.added().size(), diff.removed().size(), diff.changed().size());
+        return diff;
+    }
+
+    /**
+     * @return различия по ключам, найденные при последней перезагрузке с изменениями
+     */
+    public ConfigDiff getLastDiff() {
+        return lastDiff;
     }
 
+    /**
+     * Подменяет конфигурацию. Следующая перезагрузка прочитает файл заново,
+     * так как загруженная конфигурация больше не соответствует файлу.
+     */
     public void updateFileConfiguration(FileConfiguration fileConfiguration) {
         Objects.requireNonNull(fileConfiguration, "configuration cannot be null");
+        replaceFileConfiguration(fileConfiguration);
+        fileState = null;
+    }
+
+    private void replaceFileConfiguration(FileConfiguration fileConfiguration) {
         this.fileConfiguration = fileConfiguration;
         configuration.clearFileContentAndLoad(fileConfiguration);
         ConsoleLogger.debug(plugin, "File %s has been loaded (Class %s).",
@@ -114,6 +234,7 @@ public class BukkitConfig {
     public void saveConfiguration() {
         try {
             FileHelper.saveFile(fileConfiguration, file.getParentFile(), name);
+            fileState = readFileState();
             ConsoleLogger.debug(plugin, "File %s successfully saved (Class %s).",
                     name,
                     this.getClass().getName());
@@ -229,6 +350,41 @@ public class BukkitConfig {
             ConsoleLogger.warn(plugin, "Failed to delete configuration %s for plugin %s.", getFile().getName(), plugin.getName());
     }
 
+    /**
+     * Читает файл один раз, запоминает его состояние и разбирает прочитанное содержимое.
+     * Ошибки чтения и синтаксиса логируются, а вместо содержимого возвращается пустая конфигурация,
+     * как при {@link YamlConfiguration#loadConfiguration(File)}.
+     */
+    private YamlConfiguration readConfiguration() {
+        YamlConfiguration configuration = new YamlConfiguration();
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            fileState = null;
+            ConsoleLogger.error(plugin, "Cannot load configuration %s: %s", name, e.getMessage());
+            return configuration;
+        }
+
+        fileState = ConfigFileState.of(file, content);
+        try {
+            configuration.loadFromString(new String(content, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            ConsoleLogger.error(plugin, "Configuration %s contains format errors: %s", name, e.getMessage());
+        }
+        return configuration;
+    }
+
+    @Nullable
+    private ConfigFileState readFileState() {
+        try {
+            return ConfigFileState.of(file, Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            ConsoleLogger.debug(plugin, "Failed to read state of file %s: %s", name, e.getMessage());
+            return null;
+        }
+    }
+
     private void validateFileName(String fileName) {
         if (fileName == null || fileName.contains("..") || fileName.startsWith("/")) {
             ConsoleLogger.debug(plugin, "File name cannot be null or empty, class %s, plugin %s", getClass().getName(), plugin.getName());
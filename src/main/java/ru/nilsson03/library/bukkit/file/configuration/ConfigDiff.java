@@ -0,0 +1,97 @@
+package ru.nilsson03.library.bukkit.file.configuration;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Различия двух версий конфигурации по ключам значений. Секции не учитываются,
+ * изменение вложенного значения отражается ключом самого значения, например {@code "menu.title"}.
+ *
+ * @param added   ключи, появившиеся в новой версии
+ * @param removed ключи, отсутствующие в новой версии
+ * @param changed ключи, значения которых изменились
+ */
+public record ConfigDiff(Set<String> added, Set<String> removed, Set<String> changed) {
+
+    public static final ConfigDiff EMPTY = new ConfigDiff(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+    /**
+     * Вычисляет различия между версиями конфигурации.
+     *
+     * @param previous предыдущая версия или null, если её не было
+     */
+    public static ConfigDiff between(@Nullable ConfigurationSection previous, ConfigurationSection current) {
+        Map<String, Object> before = previous != null ? flatten(previous) : Collections.emptyMap();
+        Map<String, Object> after = flatten(current);
+
+        Set<String> added = new LinkedHashSet<>();
+        Set<String> changed = new LinkedHashSet<>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            if (!before.containsKey(entry.getKey())) {
+                added.add(entry.getKey());
+            } else if (!Objects.equals(before.get(entry.getKey()), entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        Set<String> removed = new LinkedHashSet<>();
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+
+        if (added.isEmpty() && removed.isEmpty() && changed.isEmpty()) {
+            return EMPTY;
+        }
+        return new ConfigDiff(Collections.unmodifiableSet(added), Collections.unmodifiableSet(removed),
+                Collections.unmodifiableSet(changed));
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * @return true, если ключ или любое значение внутри секции с этим путём было добавлено, удалено или изменено
+     */
+    public boolean affects(String path) {
+        String prefix = path + ".";
+        for (Set<String> keys : List.of(added, removed, changed)) {
+            for (String key : keys) {
+                if (key.equals(path) || key.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return все затронутые ключи
+     */
+    public Set<String> keys() {
+        Set<String> keys = new LinkedHashSet<>(added);
+        keys.addAll(removed);
+        keys.addAll(changed);
+        return keys;
+    }
+
+    private static Map<String, Object> flatten(ConfigurationSection section) {
+        Map<String, Object> values = new HashMap<>();
+        for (String key : section.getKeys(true)) {
+            if (!section.isConfigurationSection(key)) {
+                values.put(key, section.get(key));
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,94 @@
+package ru.nilsson03.library.bukkit.file.configuration;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Состояние файла конфигурации на момент чтения: размер, время изменения и хэш содержимого.
+ * Размер и время изменения позволяют не читать неизменённый файл, а хэш - не разбирать файл,
+ * у которого изменилось только время изменения. Состояния сравниваются по содержимому хэша.
+ */
+public final class ConfigFileState {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final long size;
+    private final long lastModified;
+    private final byte[] hash;
+
+    /**
+     * @param size         размер файла в байтах
+     * @param lastModified время изменения файла
+     * @param hash         SHA-256 содержимого файла
+     */
+    public ConfigFileState(long size, long lastModified, byte[] hash) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = Objects.requireNonNull(hash, "hash cannot be null").clone();
+    }
+
+    /**
+     * Создаёт состояние по прочитанному содержимому файла.
+     */
+    public static ConfigFileState of(File file, byte[] content) {
+        return new ConfigFileState(content.length, file.lastModified(), hash(content));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return копия хэша содержимого файла
+     */
+    public byte[] hash() {
+        return hash.clone();
+    }
+
+    /**
+     * @return true, если размер и время изменения файла не изменились с момента чтения
+     */
+    public boolean matches(File file) {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    public boolean sameContent(ConfigFileState other) {
+        return other != null && size == other.size && Arrays.equals(hash, other.hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConfigFileState other)) {
+            return false;
+        }
+        return size == other.size && lastModified == other.lastModified && Arrays.equals(hash, other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hash(size, lastModified) + Arrays.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigFileState[size=" + size + ", lastModified=" + lastModified + "]";
+    }
+
+    private static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+}
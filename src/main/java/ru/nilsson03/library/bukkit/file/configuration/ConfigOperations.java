@@ -7,11 +7,26 @@ import ru.nilsson03.library.text.api.UniversalTextApi;
 import ru.nilsson03.library.text.util.ReplaceData;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+/**
+ * Операции над плоским содержимым файла конфигурации.
+ * Значения разбираются в нужный тип и раскрашиваются при первом обращении и хранятся до следующей загрузки файла,
+ * которая создаёт новый объект операций, поэтому при повторных вызовах остаётся только подстановка плейсхолдеров.
+ */
 public class ConfigOperations {
 
+    private static final Object INVALID = new Object();
+
     private final Map<String, String> map;
+    private final Map<String, Object> booleanValues = new ConcurrentHashMap<>();
+    private final Map<String, Object> intValues = new ConcurrentHashMap<>();
+    private final Map<String, Object> longValues = new ConcurrentHashMap<>();
+    private final Map<String, Object> doubleValues = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> listValues = new ConcurrentHashMap<>();
+    private final Map<String, String> stringValues = new ConcurrentHashMap<>();
 
     public ConfigOperations(@NotNull Map<String, String> map) {
         this.map = Objects.requireNonNull(map, "Map cannot be null");
@@ -35,13 +50,8 @@ public class ConfigOperations {
      * @return Значение boolean или значение по умолчанию.
      */
     public boolean getBoolean(@NotNull String path, boolean defValue) {
-        String value = map.getOrDefault(path, null);
-        try {
-            return Boolean.parseBoolean(value);
-        } catch (Exception e) {
-            ConsoleLogger.warn("baselibrary", "Could not parse boolean value for path: " + path);
-            return defValue;
-        }
+        Object value = booleanValues.computeIfAbsent(path, key -> parse(key, Boolean::valueOf, "boolean"));
+        return value != INVALID ? (Boolean) value : defValue;
     }
 
     /**
@@ -62,13 +72,8 @@ public class ConfigOperations {
      * @return Значение int или значение по умолчанию.
      */
     public int getInt(@NotNull String path, int defValue) {
-        String value = map.getOrDefault(path, null);
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            ConsoleLogger.warn("baselibrary", "Could not parse int value for path: " + path);
-            return defValue;
-        }
+        Object value = intValues.computeIfAbsent(path, key -> parse(key, Integer::valueOf, "int"));
+        return value != INVALID ? (Integer) value : defValue;
     }
 
         /**
@@ -89,13 +94,8 @@ public class ConfigOperations {
      * @return Значение long или значение по умолчанию.
      */
     public long getLong(@NotNull String path, int defValue) {
-        String value = map.getOrDefault(path, null);
-        try {
-            return Long.parseLong(value);
-        } catch (NumberFormatException e) {
-            ConsoleLogger.warn("baselibrary", "Could not parse long value for path: " + path);
-            return defValue;
-        }
+        Object value = longValues.computeIfAbsent(path, key -> parse(key, Long::valueOf, "long"));
+        return value != INVALID ? (Long) value : defValue;
     }
 
     /**
@@ -116,13 +116,8 @@ public class ConfigOperations {
      * @return Значение double или значение по умолчанию.
      */
     public double getDouble(@NotNull String path, double defValue) {
-        String value = map.getOrDefault(path, null);
-        try {
-            return Double.parseDouble(value);
-        } catch (NumberFormatException e) {
-            ConsoleLogger.warn("baselibrary", "Could not parse double value for path: " + path);
-            return defValue;
-        }
+        Object value = doubleValues.computeIfAbsent(path, key -> parse(key, Double::valueOf, "double"));
+        return value != INVALID ? (Double) value : defValue;
     }
 
     /**
@@ -133,12 +128,23 @@ public class ConfigOperations {
      * @return Список строк или пустой список при ошибке.
      */
     public List<String> getList(@NotNull String path, ReplaceData... replacesData) {
-        String value = map.getOrDefault(path, null);
-        if (value == null) {
-            ConsoleLogger.warn("baselibrary", "Could not parse list value for path: " + path + ". Returning default message.");
-            return List.of(defaultErrorMessage());
+        List<String> text = listValues.get(path);
+        if (text == null) {
+            String value = map.getOrDefault(path, null);
+            if (value == null) {
+                ConsoleLogger.warn("baselibrary", "Could not parse list value for path: " + path + ". Returning default message.");
+                return List.of(defaultErrorMessage());
+            }
+            text = listValues.computeIfAbsent(path, key -> parseList(value));
         }
 
+        return UniversalTextApi.replacePlaceholders(text, replacesData);
+    }
+
+    /**
+     * Разбивает значение на строки, снимает обрамляющие квадратные скобки и раскрашивает строки.
+     */
+    private static List<String> parseList(String value) {
         List<String> text = Arrays.stream(value.split("\n"))
                 .map(String::trim)
                 .map(line -> {
@@ -150,8 +156,7 @@ public class ConfigOperations {
                 })
                 .map(UniversalTextApi::colorize)
                 .collect(Collectors.toList());
-
-        return UniversalTextApi.replacePlaceholders(text, replacesData);
+        return Collections.unmodifiableList(text);
     }
 
     public String getString(@NotNull String path, ReplaceData... replacesData) {
@@ -165,10 +170,30 @@ public class ConfigOperations {
             return defValue != null ? UniversalTextApi.colorize(defValue) : "";
         }
 
+        if (replacesData.length == 0) {
+            return stringValues.computeIfAbsent(path, key -> UniversalTextApi.colorize(value));
+        }
+
+        // Раскрашиваем после подстановки, чтобы цвета в подставленных значениях тоже обрабатывались
         String processedValue = UniversalTextApi.replacePlaceholders(value, replacesData);
         return UniversalTextApi.colorize(processedValue);
     }
 
+    /**
+     * Разбирает значение один раз за загрузку. Ошибка разбора также запоминается, чтобы не повторять её при каждом вызове.
+     *
+     * @return разобранное значение или INVALID
+     */
+    private Object parse(String path, Function<String, Object> parser, String type) {
+        String value = map.get(path);
+        try {
+            return Objects.requireNonNull(parser.apply(value));
+        } catch (NumberFormatException | NullPointerException e) {
+            ConsoleLogger.warn("baselibrary", "Could not parse " + type + " value for path: " + path);
+            return INVALID;
+        }
+    }
+
     private String defaultErrorMessage() {
         return "&cCouldn't get the value from the configuration.";
     }
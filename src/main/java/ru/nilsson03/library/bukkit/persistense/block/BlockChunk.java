@@ -0,0 +1,119 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nilsson03.library.collection.LongObjectMap;
+
+/**
+ * Данные блоков одного чанка, индексированные упакованной координатой блока.
+ * Флаг dirty отмечает чанки, изменённые после последней записи на диск.
+ * Чанк без хранилища используется как временный контейнер при чтении и записи файлов.
+ */
+final class BlockChunk {
+
+    @Nullable
+    private final BlockDataStore store;
+    private final int chunkX;
+    private final int chunkZ;
+    @NotNull
+    private final LongObjectMap<BlockData> blocks = new LongObjectMap<>(2);
+    private boolean dirty;
+
+    BlockChunk(@Nullable BlockDataStore store, int chunkX, int chunkZ) {
+        this.store = store;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    @Nullable
+    BlockData get(int x, int y, int z) {
+        return blocks.get(BlockKeys.blockKey(x, y, z));
+    }
+
+    @Nullable
+    BlockData put(@NotNull BlockData blockData) {
+        BlockData previous = blocks.put(BlockKeys.blockKey(blockData.x(), blockData.y(), blockData.z()), blockData);
+        if (previous != null && previous != blockData) {
+            previous.detach();
+        }
+        blockData.attach(this);
+        return previous;
+    }
+
+    @Nullable
+    BlockData remove(int x, int y, int z) {
+        BlockData removed = blocks.remove(BlockKeys.blockKey(x, y, z));
+        if (removed != null) {
+            removed.detach();
+        }
+        return removed;
+    }
+
+    /**
+     * Создаёт копию чанка для записи в другом потоке.
+     * Копия не связана с хранилищем, и дальнейшие изменения чанка на неё не влияют.
+     */
+    @NotNull
+    BlockChunk snapshot() {
+        BlockChunk snapshot = new BlockChunk(null, chunkX, chunkZ);
+        blocks.forEachValue(blockData -> snapshot.put(blockData.copy()));
+        return snapshot;
+    }
+
+    int size() {
+        return blocks.size();
+    }
+
+    boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    @NotNull
+    LongObjectMap<BlockData> blocks() {
+        return blocks;
+    }
+
+    int chunkX() {
+        return chunkX;
+    }
+
+    int chunkZ() {
+        return chunkZ;
+    }
+
+    long chunkKey() {
+        return BlockKeys.chunkKey(chunkX, chunkZ);
+    }
+
+    /**
+     * Вызывается блоком чанка при изменении его значения.
+     */
+    void valueChanged(@NotNull BlockData blockData, int index) {
+        dirty = true;
+        if (store != null) {
+            store.valueChanged(blockData, index);
+        }
+    }
+
+    /**
+     * Вызывается блоком чанка при изменении срока хранения.
+     */
+    void expiryChanged(@NotNull BlockData blockData) {
+        dirty = true;
+        if (store != null) {
+            store.expiryChanged(blockData);
+        }
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void markDirty() {
+        dirty = true;
+    }
+
+    void markClean() {
+        dirty = false;
+    }
+}
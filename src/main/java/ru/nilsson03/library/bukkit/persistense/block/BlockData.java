@@ -1,42 +1,119 @@
 package ru.nilsson03.library.bukkit.persistense.block;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.experimental.Accessors;
-import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 
+/**
+ * Данные одного блока. Значения хранятся в компактной записи: номер ключа из словаря плагина,
+ * тег типа и примитивный слот. Числа и логические значения хранятся без упаковки
+ * и возвращаются того же типа, с которым были записаны, строки - в отдельном массиве,
+ * который создаётся только при необходимости. Срок хранения блока хранится отдельно от значений.
+ */
 @Getter
 @Accessors(fluent = true)
 public class BlockData {
 
+    private static final int[] EMPTY_KEYS = new int[0];
+    private static final byte[] EMPTY_TAGS = new byte[0];
+    private static final long[] EMPTY_VALUES = new long[0];
+
+    /**
+     * Служебный ключ, под которым срок хранения блока записывается в файлы. Не может использоваться для значений.
+     */
+    static final String EXPIRY_KEY = "@expiresAt";
+
     @NotNull
-    private final String blockKey;
+    private final String worldName;
+    private final int x;
+    private final int y;
+    private final int z;
     @NotNull
-    private final Map<String, Object> data;
+    @Getter(AccessLevel.NONE)
+    private final BlockKeyDictionary dictionary;
+    @Getter(AccessLevel.NONE)
+    private int[] keys = EMPTY_KEYS;
+    @Getter(AccessLevel.NONE)
+    private byte[] tags = EMPTY_TAGS;
+    @Getter(AccessLevel.NONE)
+    private long[] values = EMPTY_VALUES;
+    @Nullable
+    @Getter(AccessLevel.NONE)
+    private Object[] objects;
+    @Getter(AccessLevel.NONE)
+    private int size;
+    @Getter(AccessLevel.NONE)
+    private long expiresAt;
+    @Nullable
+    @Getter(AccessLevel.NONE)
+    private BlockChunk chunk;
+
+    // Узел колеса истечения сроков, изменяется только под блокировкой BlockExpiryWheel
+    @Getter(AccessLevel.NONE)
+    long wheelTick;
+    @Getter(AccessLevel.NONE)
+    int wheelLevel = BlockExpiryWheel.DETACHED;
+    @Getter(AccessLevel.NONE)
+    int wheelSlot;
+    @Nullable
+    @Getter(AccessLevel.NONE)
+    BlockData wheelPrev;
+    @Nullable
+    @Getter(AccessLevel.NONE)
+    BlockData wheelNext;
 
     public BlockData(@NotNull  Block block) {
-        Objects.requireNonNull(block, "Block cant be null!");
-        Location location = block.getLocation();
-        this.blockKey = location.getWorld().getName() + ":" +
-                location.getBlockX() + ":" +
-                location.getBlockY() + ":" +
-                location.getBlockZ();
-        data = new HashMap<>();
+        this(BlockKeyDictionary.DETACHED,
+                Objects.requireNonNull(block, "Block cant be null!").getWorld().getName(),
+                block.getX(),
+                block.getY(),
+                block.getZ());
+    }
+
+    BlockData(@NotNull BlockKeyDictionary dictionary, @NotNull String worldName, int x, int y, int z) {
+        this.dictionary = dictionary;
+        this.worldName = Objects.requireNonNull(worldName, "World name cant be null!");
+        this.x = x;
+        this.y = y;
+        this.z = z;
     }
 
+    /**
+     * Записывает значение. Поддерживаются строки, числа Integer, Long, Short, Byte, Double, Float и Boolean.
+     *
+     * @throws IllegalArgumentException если тип значения нельзя сохранить на диск
+     */
     public void set(@NotNull String key, @Nullable Object value) {
         if (key.isEmpty() || value == null) {
             ConsoleLogger.warn("baselibrary", "Key or value is null in BlockData!");
             return;
         }
-        data.put(key, value);
+        if (!checkKey(key)) {
+            return;
+        }
+
+        byte tag = BlockDataCodec.tagOf(value);
+        switch (tag) {
+            case BlockDataCodec.TAG_UNSUPPORTED -> throw new IllegalArgumentException(
+                    "Unsupported block data value type " + value.getClass().getName() + " for key " + key);
+            case BlockDataCodec.TAG_INT, BlockDataCodec.TAG_SHORT, BlockDataCodec.TAG_BYTE ->
+                    putSlot(dictionary.intern(key), tag, ((Number) value).intValue(), null);
+            case BlockDataCodec.TAG_LONG -> putSlot(dictionary.intern(key), tag, (Long) value, null);
+            case BlockDataCodec.TAG_DOUBLE -> putSlot(dictionary.intern(key), tag, Double.doubleToRawLongBits((Double) value), null);
+            case BlockDataCodec.TAG_FLOAT -> putSlot(dictionary.intern(key), tag, Float.floatToRawIntBits((Float) value), null);
+            case BlockDataCodec.TAG_TRUE, BlockDataCodec.TAG_FALSE -> putSlot(dictionary.intern(key), tag, 0, null);
+            default -> putSlot(dictionary.intern(key), tag, 0, value);
+        }
     }
 
     public void setString(@NotNull String key, @NotNull String value) {
@@ -44,15 +121,27 @@ public class BlockData {
     }
 
     public void setInt(@NotNull String key, int value) {
-        set(key, value);
+        if (checkKey(key)) {
+            putSlot(dictionary.intern(key), BlockDataCodec.TAG_INT, value, null);
+        }
+    }
+
+    public void setLong(@NotNull String key, long value) {
+        if (checkKey(key)) {
+            putSlot(dictionary.intern(key), BlockDataCodec.TAG_LONG, value, null);
+        }
     }
 
     public void setDouble(@NotNull String key, double value) {
-        set(key, value);
+        if (checkKey(key)) {
+            putSlot(dictionary.intern(key), BlockDataCodec.TAG_DOUBLE, Double.doubleToRawLongBits(value), null);
+        }
     }
 
     public void setBoolean(@NotNull String key, boolean value) {
-        set(key, value);
+        if (checkKey(key)) {
+            putSlot(dictionary.intern(key), value ? BlockDataCodec.TAG_TRUE : BlockDataCodec.TAG_FALSE, 0, null);
+        }
     }
 
     @Nullable
@@ -61,7 +150,8 @@ public class BlockData {
             ConsoleLogger.warn("baselibrary", "Key cant be empty in BlockData!");
             return null;
         }
-        return data.get(key);
+        int index = indexOf(key);
+        return index >= 0 ? valueAt(index) : null;
     }
 
     @Nullable
@@ -72,45 +162,289 @@ public class BlockData {
 
     @Nullable
     public Integer getInt(@NotNull String key) {
-        Object value = get(key);
-        return value instanceof Integer ? (Integer) value : null;
+        int index = indexOf(key);
+        return index >= 0 && tags[index] == BlockDataCodec.TAG_INT ? (int) values[index] : null;
     }
 
     @Nullable
     public Double getDouble(@NotNull String key) {
-        Object value = get(key);
-        return value instanceof Double ? (Double) value : null;
+        int index = indexOf(key);
+        return index >= 0 && tags[index] == BlockDataCodec.TAG_DOUBLE ? Double.longBitsToDouble(values[index]) : null;
     }
 
     @Nullable
     public Boolean getBoolean(@NotNull String key) {
-        Object value = get(key);
-        return value instanceof Boolean ? (Boolean) value : null;
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        byte tag = tags[index];
+        return tag == BlockDataCodec.TAG_TRUE ? Boolean.TRUE : tag == BlockDataCodec.TAG_FALSE ? Boolean.FALSE : null;
     }
 
-    public boolean equals(@NotNull Block block) {
-        Objects.requireNonNull(block, "Block cant be null!");
-        String parsedLocation = parseLocation(block.getLocation());
-        return blockKey.equals(parsedLocation);
+    /**
+     * Возвращает целое значение без упаковки. Значения short и byte также возвращаются.
+     *
+     * @param def значение, если ключ отсутствует или хранит значение другого типа
+     */
+    public int getInt(@NotNull String key, int def) {
+        int index = indexOf(key);
+        return index >= 0 && isInteger(tags[index]) ? (int) values[index] : def;
+    }
+
+    /**
+     * Возвращает значение long без упаковки. Значения int, short и byte также возвращаются.
+     *
+     * @param def значение, если ключ отсутствует или хранит значение другого типа
+     */
+    public long getLong(@NotNull String key, long def) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return def;
+        }
+        byte tag = tags[index];
+        return tag == BlockDataCodec.TAG_LONG || isInteger(tag) ? values[index] : def;
+    }
+
+    /**
+     * Возвращает дробное значение без упаковки. Значения float также возвращаются.
+     *
+     * @param def значение, если ключ отсутствует или хранит значение другого типа
+     */
+    public double getDouble(@NotNull String key, double def) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return def;
+        }
+        return switch (tags[index]) {
+            case BlockDataCodec.TAG_DOUBLE -> Double.longBitsToDouble(values[index]);
+            case BlockDataCodec.TAG_FLOAT -> Float.intBitsToFloat((int) values[index]);
+            default -> def;
+        };
+    }
+
+    public boolean getBoolean(@NotNull String key, boolean def) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return def;
+        }
+        byte tag = tags[index];
+        return tag == BlockDataCodec.TAG_TRUE || (tag != BlockDataCodec.TAG_FALSE && def);
+    }
+
+    @Nullable
+    public Long getLong(@NotNull String key) {
+        int index = indexOf(key);
+        return index >= 0 && tags[index] == BlockDataCodec.TAG_LONG ? values[index] : null;
+    }
+
+    public boolean has(@NotNull String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Возвращает время, после которого данные блока удаляются, в миллисекундах эпохи.
+     *
+     * @return время истечения или 0, если срок не задан
+     */
+    public long expiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Возвращает неизменяемую копию всех значений блока на момент вызова.
+     * В отличие от прежней изменяемой карты, копия не связана с блоком:
+     * изменения выполняются только через методы set и в уже полученной копии не отражаются.
+     */
+    @NotNull
+    public Map<String, Object> data() {
+        Map<String, Object> data = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            data.put(dictionary.key(keys[i]), valueAt(i));
+        }
+        return Collections.unmodifiableMap(data);
+    }
+
+    @NotNull
+    public String blockKey() {
+        return worldName + ":" + x + ":" + y + ":" + z;
+    }
+
+    /**
+     * Создаёт независимую копию блока, не привязанную к чанку.
+     */
+    @NotNull
+    BlockData copy() {
+        return relocate(x, y, z);
+    }
+
+    /**
+     * Создаёт копию блока с другими координатами в том же мире, например, при сдвиге поршнем.
+     */
+    @NotNull
+    BlockData relocate(int x, int y, int z) {
+        BlockData moved = new BlockData(dictionary, worldName, x, y, z);
+        moved.keys = Arrays.copyOf(keys, size);
+        moved.tags = Arrays.copyOf(tags, size);
+        moved.values = Arrays.copyOf(values, size);
+        moved.objects = objects != null ? Arrays.copyOf(objects, size) : null;
+        moved.size = size;
+        moved.expiresAt = expiresAt;
+        return moved;
+    }
+
+    /**
+     * Задаёт время истечения данных блока.
+     *
+     * @param expiresAt время в миллисекундах эпохи, 0 снимает срок
+     */
+    void expireAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+        if (chunk != null) {
+            chunk.expiryChanged(this);
+        }
     }
 
     @NotNull
-    private String parseLocation(@NotNull Location location) {
-        return location.getWorld().getName() + ":" +
-                location.getBlockX() + ":" +
-                location.getBlockY() + ":" +
-                location.getBlockZ();
+    BlockKeyDictionary dictionary() {
+        return dictionary;
+    }
+
+    int entryCount() {
+        return size;
+    }
+
+    int keyIdAt(int index) {
+        return keys[index];
+    }
+
+    byte tagAt(int index) {
+        return tags[index];
+    }
+
+    long primitiveAt(int index) {
+        return values[index];
+    }
+
+    @Nullable
+    Object objectAt(int index) {
+        return objects != null ? objects[index] : null;
+    }
+
+    /**
+     * Записывает значение в слот ключа и сообщает чанку об изменении.
+     * Значение служебного ключа срока хранения, прочитанное из файла, записывается в срок хранения.
+     *
+     * @param primitive значение числовых типов, для double и float - биты значения
+     * @param object    значение строк и типов, не имеющих примитивного слота
+     */
+    void putSlot(int keyId, byte tag, long primitive, @Nullable Object object) {
+        if (keyId == dictionary.expiryKeyId()) {
+            expireAt(tag == BlockDataCodec.TAG_LONG ? primitive : 0);
+            return;
+        }
+
+        int index = indexOf(keyId);
+        if (index < 0) {
+            index = size;
+            if (size == keys.length) {
+                int capacity = Math.max(2, size + (size >> 1));
+                keys = Arrays.copyOf(keys, capacity);
+                tags = Arrays.copyOf(tags, capacity);
+                values = Arrays.copyOf(values, capacity);
+                if (objects != null) {
+                    objects = Arrays.copyOf(objects, capacity);
+                }
+            }
+            keys[index] = keyId;
+            size++;
+        }
+
+        tags[index] = tag;
+        values[index] = primitive;
+        if (object != null && objects == null) {
+            objects = new Object[keys.length];
+        }
+        if (objects != null) {
+            objects[index] = object;
+        }
+
+        if (chunk != null) {
+            chunk.valueChanged(this, index);
+        }
+    }
+
+    void attach(@NotNull BlockChunk chunk) {
+        this.chunk = chunk;
+    }
+
+    void detach() {
+        this.chunk = null;
+    }
+
+    private boolean checkKey(String key) {
+        if (key.isEmpty()) {
+            ConsoleLogger.warn("baselibrary", "Key cant be empty in BlockData!");
+            return false;
+        }
+        if (key.equals(EXPIRY_KEY)) {
+            ConsoleLogger.warn("baselibrary", "Key %s is reserved in BlockData!", EXPIRY_KEY);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isInteger(byte tag) {
+        return tag == BlockDataCodec.TAG_INT || tag == BlockDataCodec.TAG_SHORT || tag == BlockDataCodec.TAG_BYTE;
+    }
+
+    private int indexOf(String key) {
+        int keyId = dictionary.find(key);
+        return keyId >= 0 ? indexOf(keyId) : -1;
+    }
+
+    private int indexOf(int keyId) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == keyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    private Object valueAt(int index) {
+        long value = values[index];
+        return switch (tags[index]) {
+            case BlockDataCodec.TAG_INT -> (int) value;
+            case BlockDataCodec.TAG_SHORT -> (short) value;
+            case BlockDataCodec.TAG_BYTE -> (byte) value;
+            case BlockDataCodec.TAG_LONG -> value;
+            case BlockDataCodec.TAG_DOUBLE -> Double.longBitsToDouble(value);
+            case BlockDataCodec.TAG_FLOAT -> Float.intBitsToFloat((int) value);
+            case BlockDataCodec.TAG_TRUE -> Boolean.TRUE;
+            case BlockDataCodec.TAG_FALSE -> Boolean.FALSE;
+            default -> objectAt(index);
+        };
+    }
+
+    public boolean equals(@NotNull Block block) {
+        Objects.requireNonNull(block, "Block cant be null!");
+        return x == block.getX()
+                && y == block.getY()
+                && z == block.getZ()
+                && worldName.equals(block.getWorld().getName());
     }
 
     @Override
     public boolean equals(@NotNull Object obj) {
         if (this == obj) return true;
         if (!(obj instanceof BlockData other)) return false;
-        return blockKey.equals(other.blockKey);
+        return x == other.x && y == other.y && z == other.z && worldName.equals(other.worldName);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(blockKey);
+        return Objects.hash(worldName, x, y, z);
     }
 }
@@ -0,0 +1,174 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Общие примитивы бинарных форматов данных блоков:
+ * varint/zigzag числа, строки UTF-8 и значения с тегом типа.
+ */
+final class BlockDataCodec {
+
+    static final byte TAG_UNSUPPORTED = 0;
+    static final byte TAG_STRING = 1;
+    static final byte TAG_INT = 2;
+    static final byte TAG_LONG = 3;
+    static final byte TAG_DOUBLE = 4;
+    static final byte TAG_FLOAT = 5;
+    static final byte TAG_TRUE = 6;
+    static final byte TAG_FALSE = 7;
+    static final byte TAG_SHORT = 8;
+    static final byte TAG_BYTE = 9;
+
+    private BlockDataCodec() {
+        throw new AssertionError("Utility class should not be instantiated");
+    }
+
+    /**
+     * Возвращает тег типа значения или {@link #TAG_UNSUPPORTED}, если тип нельзя записать.
+     */
+    static byte tagOf(@Nullable Object value) {
+        if (value instanceof String) {
+            return TAG_STRING;
+        } else if (value instanceof Integer) {
+            return TAG_INT;
+        } else if (value instanceof Short) {
+            return TAG_SHORT;
+        } else if (value instanceof Byte) {
+            return TAG_BYTE;
+        } else if (value instanceof Long) {
+            return TAG_LONG;
+        } else if (value instanceof Double) {
+            return TAG_DOUBLE;
+        } else if (value instanceof Float) {
+            return TAG_FLOAT;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? TAG_TRUE : TAG_FALSE;
+        }
+        return TAG_UNSUPPORTED;
+    }
+
+    /**
+     * Записывает тег и значение слота блока.
+     */
+    static void writeSlot(@NotNull DataOutput out, @NotNull BlockData blockData, int index) throws IOException {
+        byte tag = blockData.tagAt(index);
+        long value = blockData.primitiveAt(index);
+        out.writeByte(tag);
+        switch (tag) {
+            case TAG_STRING -> writeString(out, (String) Objects.requireNonNull(blockData.objectAt(index)));
+            case TAG_INT, TAG_SHORT -> writeVarInt(out, zigzag((int) value));
+            case TAG_BYTE -> out.writeByte((int) value);
+            case TAG_LONG -> writeVarLong(out, zigzag(value));
+            case TAG_DOUBLE -> out.writeLong(value);
+            case TAG_FLOAT -> out.writeInt((int) value);
+            case TAG_TRUE, TAG_FALSE -> {
+            }
+            default -> throw new IllegalArgumentException("Unsupported value tag " + tag);
+        }
+    }
+
+    /**
+     * Читает тег и значение и записывает их в слот ключа блока без упаковки.
+     */
+    static void readSlot(@NotNull ByteBuffer buffer, @NotNull BlockData blockData, int keyId) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_STRING -> blockData.putSlot(keyId, tag, 0, readString(buffer));
+            case TAG_INT, TAG_SHORT -> blockData.putSlot(keyId, tag, unzigzag(readVarInt(buffer)), null);
+            case TAG_BYTE -> blockData.putSlot(keyId, tag, buffer.get(), null);
+            case TAG_LONG -> blockData.putSlot(keyId, tag, unzigzag(readVarLong(buffer)), null);
+            case TAG_DOUBLE -> blockData.putSlot(keyId, tag, buffer.getLong(), null);
+            case TAG_FLOAT -> blockData.putSlot(keyId, tag, buffer.getInt(), null);
+            case TAG_TRUE, TAG_FALSE -> blockData.putSlot(keyId, tag, 0, null);
+            default -> throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Записывает тег и значение срока хранения блока, который хранится под служебным ключом.
+     */
+    static void writeExpiry(@NotNull DataOutput out, long expiresAt) throws IOException {
+        out.writeByte(TAG_LONG);
+        writeVarLong(out, zigzag(expiresAt));
+    }
+
+    static void writeString(@NotNull DataOutput out, @NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    static String readString(@NotNull ByteBuffer buffer) {
+        int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static void writeVarInt(@NotNull DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static void writeVarLong(@NotNull DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static int readVarInt(@NotNull ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarInt is too long");
+    }
+
+    static long readVarLong(@NotNull ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarLong is too long");
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
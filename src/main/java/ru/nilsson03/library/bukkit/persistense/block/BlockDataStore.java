@@ -0,0 +1,230 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nilsson03.library.collection.LongObjectMap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Хранилище данных блоков плагина: мир → чанк → блок.
+ * Поиск по координатам выполняется за O(1) и не создаёт объектов.
+ * Опустевшие чанки остаются в хранилище до записи на диск, чтобы удаление попало в файл.
+ */
+final class BlockDataStore {
+
+    @NotNull
+    private final Map<String, LongObjectMap<BlockChunk>> worlds = new HashMap<>();
+    @NotNull
+    private final BlockKeyDictionary dictionary;
+    @Nullable
+    private BlockJournal journal;
+    @Nullable
+    private BlockExpiryWheel expiryWheel;
+    private int size;
+
+    BlockDataStore(@NotNull BlockKeyDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    @NotNull
+    BlockKeyDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Устанавливает журнал, в который записываются все последующие изменения хранилища.
+     */
+    void setJournal(@Nullable BlockJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Устанавливает колесо, в котором планируется удаление блоков с ограниченным сроком хранения,
+     * в том числе загружаемых с диска.
+     */
+    void setExpiryWheel(@Nullable BlockExpiryWheel expiryWheel) {
+        this.expiryWheel = expiryWheel;
+    }
+
+    @Nullable
+    BlockData get(@NotNull Block block) {
+        return get(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+
+    @Nullable
+    BlockData get(@NotNull String worldName, int x, int y, int z) {
+        BlockChunk chunk = chunk(worldName, x >> 4, z >> 4);
+        return chunk != null ? chunk.get(x, y, z) : null;
+    }
+
+    void put(@NotNull BlockData blockData) {
+        BlockChunk chunk = putLoaded(blockData);
+        chunk.markDirty();
+        if (journal != null) {
+            journal.recordPut(blockData);
+        }
+    }
+
+    /**
+     * Помещает блок, прочитанный с диска, не отмечая чанк изменённым и не записывая журнал.
+     */
+    @NotNull
+    BlockChunk putLoaded(@NotNull BlockData blockData) {
+        BlockChunk chunk = getOrCreateChunk(blockData.worldName(), blockData.x() >> 4, blockData.z() >> 4);
+        BlockData previous = chunk.put(blockData);
+        if (previous == null) {
+            size++;
+        } else if (previous != blockData && expiryWheel != null) {
+            expiryWheel.cancel(previous);
+        }
+        if (expiryWheel != null && blockData.expiresAt() != 0) {
+            expiryWheel.schedule(blockData, blockData.expiresAt());
+        }
+        return chunk;
+    }
+
+    @Nullable
+    BlockData remove(@NotNull Block block) {
+        return remove(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+
+    @Nullable
+    BlockData remove(@NotNull String worldName, int x, int y, int z) {
+        BlockChunk chunk = chunk(worldName, x >> 4, z >> 4);
+        return chunk != null ? remove(chunk, worldName, x, y, z) : null;
+    }
+
+    /**
+     * Удаляет данные группы блоков одной операцией.
+     * Для идущих подряд блоков одного чанка чанк ищется один раз.
+     *
+     * @param removed получает данные каждого удалённого блока
+     */
+    void removeAll(@NotNull Collection<Block> blocks, @NotNull Consumer<BlockData> removed) {
+        String lastWorldName = null;
+        long lastChunkKey = 0;
+        BlockChunk chunk = null;
+        for (Block block : blocks) {
+            String worldName = block.getWorld().getName();
+            int x = block.getX();
+            int z = block.getZ();
+            long chunkKey = BlockKeys.chunkKeyOfBlock(x, z);
+            if (chunkKey != lastChunkKey || !worldName.equals(lastWorldName)) {
+                chunk = chunk(worldName, x >> 4, z >> 4);
+                lastWorldName = worldName;
+                lastChunkKey = chunkKey;
+            }
+
+            if (chunk != null) {
+                BlockData blockData = remove(chunk, worldName, x, block.getY(), z);
+                if (blockData != null) {
+                    removed.accept(blockData);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private BlockData remove(@NotNull BlockChunk chunk, @NotNull String worldName, int x, int y, int z) {
+        BlockData removed = chunk.remove(x, y, z);
+        if (removed != null) {
+            size--;
+            if (expiryWheel != null) {
+                expiryWheel.cancel(removed);
+            }
+            chunk.markDirty();
+            if (journal != null) {
+                journal.recordRemove(worldName, x, y, z);
+            }
+        }
+        return removed;
+    }
+
+    @Nullable
+    BlockChunk chunk(@NotNull String worldName, int chunkX, int chunkZ) {
+        LongObjectMap<BlockChunk> chunks = worlds.get(worldName);
+        return chunks != null ? chunks.get(BlockKeys.chunkKey(chunkX, chunkZ)) : null;
+    }
+
+    @NotNull
+    BlockChunk getOrCreateChunk(@NotNull String worldName, int chunkX, int chunkZ) {
+        LongObjectMap<BlockChunk> chunks = worlds.computeIfAbsent(worldName, k -> new LongObjectMap<>());
+        long chunkKey = BlockKeys.chunkKey(chunkX, chunkZ);
+        BlockChunk chunk = chunks.get(chunkKey);
+        if (chunk == null) {
+            chunk = new BlockChunk(this, chunkX, chunkZ);
+            chunks.put(chunkKey, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Выгружает чанк из памяти вместе со всеми его блоками. Блоки чанка убираются из колеса истечения сроков
+     * и планируются заново при следующей загрузке чанка.
+     *
+     * @return выгруженный чанк или null, если он не был загружен
+     */
+    @Nullable
+    BlockChunk removeChunk(@NotNull String worldName, int chunkX, int chunkZ) {
+        LongObjectMap<BlockChunk> chunks = worlds.get(worldName);
+        if (chunks == null) {
+            return null;
+        }
+
+        BlockChunk removed = chunks.remove(BlockKeys.chunkKey(chunkX, chunkZ));
+        if (removed != null) {
+            size -= removed.size();
+            if (expiryWheel != null) {
+                removed.blocks().forEachValue(expiryWheel::cancel);
+            }
+            if (chunks.isEmpty()) {
+                worlds.remove(worldName);
+            }
+        }
+        return removed;
+    }
+
+    void valueChanged(@NotNull BlockData blockData, int index) {
+        if (journal != null) {
+            journal.recordSet(blockData, index);
+        }
+    }
+
+    void expiryChanged(@NotNull BlockData blockData) {
+        if (journal != null) {
+            journal.recordExpiry(blockData);
+        }
+        if (expiryWheel == null) {
+            return;
+        }
+        if (blockData.expiresAt() != 0) {
+            expiryWheel.schedule(blockData, blockData.expiresAt());
+        } else {
+            expiryWheel.cancel(blockData);
+        }
+    }
+
+    @Nullable
+    LongObjectMap<BlockChunk> chunks(@NotNull String worldName) {
+        return worlds.get(worldName);
+    }
+
+    @NotNull
+    Set<String> worldNames() {
+        return worlds.keySet();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,180 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Иерархическое колесо таймеров для истекающих данных блоков.
+ * Четыре уровня по 64 ячейки с шагом в один серверный тик покрывают около 9 дней,
+ * более далёкие сроки хранятся в отдельном списке и перераспределяются при полном обороте колеса.
+ * Продвижение колеса стоит O(1) на тик плюс O(1) на каждую истёкшую запись и не зависит от общего количества данных.
+ * <p>
+ * Узлом колеса служит сам {@link BlockData}: блоки связаны в двусвязные списки ячеек, поэтому у блока
+ * не больше одной записи в колесе. Продление срока переносит блок за O(1), а удалённые и выгруженные блоки
+ * убираются из колеса сразу и не удерживаются в памяти до прежнего срока.
+ */
+final class BlockExpiryWheel {
+
+    static final long TICK_MILLIS = 50;
+    static final int DETACHED = -2;
+
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final int OVERFLOW = -1;
+
+    private final BlockData[][] slots = new BlockData[LEVELS][LEVEL_SIZE];
+    private BlockData overflow;
+    private long currentTick;
+    private int size;
+
+    BlockExpiryWheel(long now) {
+        this.currentTick = now / TICK_MILLIS;
+    }
+
+    /**
+     * Планирует проверку блока в момент истечения срока. Блок, уже находящийся в колесе, переносится на новый срок.
+     * Прошедшие сроки срабатывают при ближайшем продвижении.
+     *
+     * @param expiresAt время истечения в миллисекундах эпохи
+     */
+    synchronized void schedule(@NotNull BlockData blockData, long expiresAt) {
+        if (blockData.wheelLevel != DETACHED) {
+            unlink(blockData);
+        } else {
+            size++;
+        }
+        blockData.wheelTick = Math.max((expiresAt + TICK_MILLIS - 1) / TICK_MILLIS, currentTick);
+        insert(blockData);
+    }
+
+    /**
+     * Убирает блок из колеса, если он в нём находится.
+     */
+    synchronized void cancel(@NotNull BlockData blockData) {
+        if (blockData.wheelLevel == DETACHED) {
+            return;
+        }
+        unlink(blockData);
+        size--;
+    }
+
+    /**
+     * Продвигает колесо до указанного времени и возвращает блоки, срок которых наступил.
+     * Возвращённые блоки нужно проверить: блок мог быть заменён в хранилище, а срок - изменён после продвижения.
+     */
+    @NotNull
+    synchronized List<BlockData> advance(long now) {
+        long target = now / TICK_MILLIS;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target + 1);
+            return List.of();
+        }
+
+        List<BlockData> due = new ArrayList<>();
+        while (currentTick <= target && size > 0) {
+            int index = (int) (currentTick & LEVEL_MASK);
+            BlockData blockData = slots[0][index];
+            slots[0][index] = null;
+            while (blockData != null) {
+                BlockData next = blockData.wheelNext;
+                detach(blockData);
+                due.add(blockData);
+                size--;
+                blockData = next;
+            }
+
+            currentTick++;
+            cascade();
+        }
+
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target + 1);
+        }
+        return due;
+    }
+
+    /**
+     * Переносит записи старших уровней, чей период начался на текущем тике, на младшие уровни.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int index = (int) ((currentTick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+            BlockData blockData = slots[level][index];
+            slots[level][index] = null;
+            reinsert(blockData);
+        }
+
+        if ((currentTick & ((1L << (LEVEL_BITS * LEVELS)) - 1)) == 0) {
+            BlockData blockData = overflow;
+            overflow = null;
+            reinsert(blockData);
+        }
+    }
+
+    private void reinsert(BlockData blockData) {
+        while (blockData != null) {
+            BlockData next = blockData.wheelNext;
+            detach(blockData);
+            insert(blockData);
+            blockData = next;
+        }
+    }
+
+    /**
+     * Помещает блок на уровень старшей группы битов, в которой срок отличается от текущего тика.
+     * Такая ячейка гарантированно ещё не пройдена и будет разобрана до наступления срока.
+     */
+    private void insert(BlockData blockData) {
+        long diff = blockData.wheelTick ^ currentTick;
+        int level = 0;
+        while (level < LEVELS && (diff >>> (LEVEL_BITS * (level + 1))) != 0) {
+            level++;
+        }
+
+        BlockData head;
+        if (level == LEVELS) {
+            blockData.wheelLevel = OVERFLOW;
+            head = overflow;
+            overflow = blockData;
+        } else {
+            int index = (int) ((blockData.wheelTick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+            blockData.wheelLevel = level;
+            blockData.wheelSlot = index;
+            head = slots[level][index];
+            slots[level][index] = blockData;
+        }
+        blockData.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = blockData;
+        }
+    }
+
+    private void unlink(BlockData blockData) {
+        BlockData prev = blockData.wheelPrev;
+        BlockData next = blockData.wheelNext;
+        if (prev != null) {
+            prev.wheelNext = next;
+        } else if (blockData.wheelLevel == OVERFLOW) {
+            overflow = next;
+        } else {
+            slots[blockData.wheelLevel][blockData.wheelSlot] = next;
+        }
+        if (next != null) {
+            next.wheelPrev = prev;
+        }
+        detach(blockData);
+    }
+
+    private static void detach(BlockData blockData) {
+        blockData.wheelPrev = null;
+        blockData.wheelNext = null;
+        blockData.wheelLevel = DETACHED;
+    }
+}
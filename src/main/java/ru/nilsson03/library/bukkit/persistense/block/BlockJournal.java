@@ -0,0 +1,437 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений данных блоков, дописываемый в конец файла.
+ * Изменения накапливаются в памяти и периодически сбрасываются на диск с fsync.
+ * Журнал состоит из сегментов {@code journal.<номер>.bpj}: при начале сохранения
+ * открывается новый сегмент, а предыдущие удаляются после успешной записи регионов.
+ * Монитор журнала защищает только буфер в памяти, поэтому запись изменений из основного потока
+ * не ждёт записи в файл: файл пишется под отдельной блокировкой ввода-вывода.
+ *
+ * <pre>
+ * запись:  varint длина тела, int CRC32 тела, тело
+ * тело:    byte операция, строка мира, varint X/Y/Z (zigzag), далее
+ *          SET    - строка ключа, byte тег, значение
+ *          PUT    - varint количество значений, далее ключ, тег и значение для каждого
+ *          REMOVE - ничего
+ * </pre>
+ */
+final class BlockJournal {
+
+    private static final String FILE_PREFIX = "journal.";
+    private static final String FILE_EXTENSION = ".bpj";
+
+    private static final byte OP_SET = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    @NotNull
+    private final File directory;
+    @NotNull
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    @NotNull
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    @NotNull
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    @NotNull
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    @NotNull
+    private final CRC32 crc = new CRC32();
+    /**
+     * Записи закрытых сегментов, ещё не записанные в файл. Защищены монитором журнала.
+     */
+    @NotNull
+    private final Deque<Sealed> sealed = new ArrayDeque<>();
+    @NotNull
+    private final Object ioLock = new Object();
+    private volatile boolean open;
+    private long segment;
+    private FileChannel channel;
+    private long channelSegment;
+
+    BlockJournal(@NotNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Начинает запись в новый сегмент после всех существующих. Файл сегмента создаётся при первой записи.
+     */
+    void open() throws IOException {
+        synchronized (ioLock) {
+            if (open) {
+                return;
+            }
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed to create directory: " + directory.getPath());
+            }
+            long[] segments = segments(directory);
+            synchronized (this) {
+                segment = segments.length > 0 ? segments[segments.length - 1] + 1 : 0;
+            }
+            open = true;
+        }
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    synchronized void recordSet(@NotNull BlockData blockData, int index) {
+        try {
+            beginRecord(OP_SET, blockData.worldName(), blockData.x(), blockData.y(), blockData.z());
+            BlockDataCodec.writeString(recordOut, blockData.dictionary().key(blockData.keyIdAt(index)));
+            BlockDataCodec.writeSlot(recordOut, blockData, index);
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void recordExpiry(@NotNull BlockData blockData) {
+        try {
+            beginRecord(OP_SET, blockData.worldName(), blockData.x(), blockData.y(), blockData.z());
+            BlockDataCodec.writeString(recordOut, BlockData.EXPIRY_KEY);
+            BlockDataCodec.writeExpiry(recordOut, blockData.expiresAt());
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void recordPut(@NotNull BlockData blockData) {
+        try {
+            beginRecord(OP_PUT, blockData.worldName(), blockData.x(), blockData.y(), blockData.z());
+            boolean expires = blockData.expiresAt() != 0;
+            BlockDataCodec.writeVarInt(recordOut, blockData.entryCount() + (expires ? 1 : 0));
+            for (int i = 0; i < blockData.entryCount(); i++) {
+                BlockDataCodec.writeString(recordOut, blockData.dictionary().key(blockData.keyIdAt(i)));
+                BlockDataCodec.writeSlot(recordOut, blockData, i);
+            }
+            if (expires) {
+                BlockDataCodec.writeString(recordOut, BlockData.EXPIRY_KEY);
+                BlockDataCodec.writeExpiry(recordOut, blockData.expiresAt());
+            }
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void recordRemove(@NotNull String worldName, int x, int y, int z) {
+        try {
+            beginRecord(OP_REMOVE, worldName, x, y, z);
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Дописывает накопленные записи в файл и дожидается их попадания на диск.
+     * Под монитором журнала только забирается буфер, запись и fsync выполняются вне его.
+     * Если запись не удалась, записи возвращаются в буфер и дописываются при следующем вызове.
+     */
+    void sync() throws IOException {
+        synchronized (ioLock) {
+            if (!open) {
+                return;
+            }
+            writeSealed();
+
+            byte[] bytes;
+            long target;
+            synchronized (this) {
+                bytes = takePending();
+                target = segment;
+            }
+            if (bytes.length == 0) {
+                return;
+            }
+
+            try {
+                write(target, bytes);
+            } catch (IOException e) {
+                restorePending(bytes);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Закрывает текущий сегмент и начинает новый, не обращаясь к файлу. Все изменения, сделанные до вызова,
+     * остаются в закрытом сегменте и записываются на диск вызовом {@link #flushSealed()} или следующим {@link #sync()}.
+     *
+     * @return номер закрытого сегмента или -1, если журнал не открыт
+     */
+    synchronized long seal() {
+        if (!open) {
+            return -1;
+        }
+        long closed = segment++;
+        sealed.addLast(new Sealed(closed, takePending()));
+        return closed;
+    }
+
+    /**
+     * Записывает на диск закрытые сегменты и закрывает их файлы.
+     */
+    void flushSealed() throws IOException {
+        synchronized (ioLock) {
+            writeSealed();
+        }
+    }
+
+    /**
+     * Записывает закрытые сегменты по порядку. Вызывается под блокировкой ввода-вывода
+     * перед записью текущего сегмента, чтобы более поздние записи не попали на диск раньше предыдущих.
+     */
+    private void writeSealed() throws IOException {
+        while (true) {
+            Sealed next;
+            synchronized (this) {
+                next = sealed.peekFirst();
+            }
+            if (next == null) {
+                return;
+            }
+
+            write(next.segment, next.bytes);
+            if (channel != null && channelSegment == next.segment) {
+                channel.close();
+                channel = null;
+            }
+            synchronized (this) {
+                sealed.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * Дописывает байты в файл сегмента и выполняет fsync. Вызывается под блокировкой ввода-вывода.
+     * При ошибке файл обрезается до прежнего размера, чтобы повторная запись не оставила в нём обрывок записи.
+     */
+    private void write(long target, byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            return;
+        }
+        if (channel != null && channelSegment != target) {
+            channel.close();
+            channel = null;
+        }
+        if (channel == null) {
+            channel = openSegment(target);
+            channelSegment = target;
+        }
+
+        long start = channel.size();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private byte[] takePending() {
+        byte[] bytes = pending.toByteArray();
+        pending.reset();
+        return bytes;
+    }
+
+    private synchronized void restorePending(byte[] bytes) {
+        byte[] newer = pending.toByteArray();
+        pending.reset();
+        pending.write(bytes, 0, bytes.length);
+        pending.write(newer, 0, newer.length);
+    }
+
+    /**
+     * Удаляет сегменты с номером не больше указанного, изменения которых уже записаны в регионы.
+     */
+    void deleteSegments(long lastSegment) throws IOException {
+        for (long id : segments(directory)) {
+            if (id > lastSegment) {
+                break;
+            }
+            Files.deleteIfExists(segmentFile(directory, id).toPath());
+        }
+    }
+
+    boolean hasSegments() {
+        return segments(directory).length > 0;
+    }
+
+    void close() throws IOException {
+        synchronized (ioLock) {
+            try {
+                sync();
+            } finally {
+                open = false;
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Применяет записи всех сегментов журнала к хранилищу по порядку. Чанки, которых касаются записи,
+     * предварительно загружаются с диска. Чтение сегмента останавливается на первой
+     * повреждённой или недописанной записи.
+     *
+     * @return количество применённых записей
+     */
+    static int replay(@NotNull String pluginName, @NotNull File directory, @NotNull BlockRegionStorage regionStorage,
+                      @NotNull BlockDataStore store) throws IOException {
+        int applied = 0;
+        for (long id : segments(directory)) {
+            applied += replaySegment(pluginName, segmentFile(directory, id), regionStorage, store);
+        }
+        return applied;
+    }
+
+    private static int replaySegment(String pluginName, File file, BlockRegionStorage regionStorage,
+                                     BlockDataStore store) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        CRC32 crc = new CRC32();
+        int applied = 0;
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            try {
+                int length = BlockDataCodec.readVarInt(buffer);
+                int checksum = buffer.getInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Invalid record length " + length);
+                }
+
+                crc.reset();
+                crc.update(buffer.array(), buffer.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IllegalArgumentException("Checksum mismatch");
+                }
+
+                ByteBuffer body = ByteBuffer.wrap(buffer.array(), buffer.position(), length).slice();
+                buffer.position(buffer.position() + length);
+                apply(body, regionStorage, store);
+                applied++;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                ConsoleLogger.warn(pluginName, "Block data journal %s is truncated at byte %s, skipping the rest: %s",
+                        file.getName(), start, e.getMessage());
+                break;
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(ByteBuffer body, BlockRegionStorage regionStorage, BlockDataStore store) {
+        byte op = body.get();
+        String worldName = BlockDataCodec.readString(body);
+        int x = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(body));
+        int y = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(body));
+        int z = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(body));
+
+        if (store.chunk(worldName, x >> 4, z >> 4) == null) {
+            regionStorage.loadChunk(store, worldName, x >> 4, z >> 4);
+        }
+
+        switch (op) {
+            case OP_SET -> {
+                int keyId = store.dictionary().intern(BlockDataCodec.readString(body));
+                BlockData blockData = store.get(worldName, x, y, z);
+                if (blockData != null) {
+                    BlockDataCodec.readSlot(body, blockData, keyId);
+                }
+            }
+            case OP_PUT -> {
+                BlockData blockData = new BlockData(store.dictionary(), worldName, x, y, z);
+                int count = BlockDataCodec.readVarInt(body);
+                for (int i = 0; i < count; i++) {
+                    int keyId = store.dictionary().intern(BlockDataCodec.readString(body));
+                    BlockDataCodec.readSlot(body, blockData, keyId);
+                }
+                store.put(blockData);
+            }
+            case OP_REMOVE -> store.remove(worldName, x, y, z);
+            default -> throw new IllegalArgumentException("Unknown journal operation " + op);
+        }
+    }
+
+    /**
+     * Записи закрытого сегмента, ожидающие записи в файл.
+     */
+    private record Sealed(long segment, byte[] bytes) {
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentFile(directory, id).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static File segmentFile(File directory, long id) {
+        return new File(directory, FILE_PREFIX + id + FILE_EXTENSION);
+    }
+
+    private static long[] segments(File directory) {
+        String[] names = directory.list((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXTENSION));
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                ids[count] = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_EXTENSION.length()));
+                count++;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void beginRecord(byte op, String worldName, int x, int y, int z) throws IOException {
+        record.reset();
+        recordOut.writeByte(op);
+        BlockDataCodec.writeString(recordOut, worldName);
+        BlockDataCodec.writeVarInt(recordOut, BlockDataCodec.zigzag(x));
+        BlockDataCodec.writeVarInt(recordOut, BlockDataCodec.zigzag(y));
+        BlockDataCodec.writeVarInt(recordOut, BlockDataCodec.zigzag(z));
+    }
+
+    private void endRecord() throws IOException {
+        crc.reset();
+        crc.update(record.toByteArray());
+        BlockDataCodec.writeVarInt(pendingOut, record.size());
+        pendingOut.writeInt((int) crc.getValue());
+        record.writeTo(pendingOut);
+    }
+}
@@ -0,0 +1,73 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Словарь ключей данных блоков одного плагина.
+ * Каждый ключ хранится в одном экземпляре, блоки ссылаются на него по номеру.
+ * Чтение потокобезопасно, добавление новых ключей синхронизировано.
+ */
+final class BlockKeyDictionary {
+
+    /**
+     * Словарь блоков, созданных вне хранилища плагина.
+     */
+    static final BlockKeyDictionary DETACHED = new BlockKeyDictionary();
+
+    @NotNull
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    @NotNull
+    private volatile String[] keys = new String[16];
+    private int size;
+    private final int expiryKeyId = intern(BlockData.EXPIRY_KEY);
+
+    /**
+     * Возвращает номер ключа, добавляя ключ в словарь при первом обращении.
+     */
+    int intern(@NotNull String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+
+            String[] current = keys;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size << 1);
+            }
+            current[size] = key;
+            keys = current;
+            ids.put(key, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Возвращает номер ключа или -1, если ключ ещё не встречался.
+     */
+    int find(@NotNull String key) {
+        Integer id = ids.get(key);
+        return id != null ? id : -1;
+    }
+
+    @NotNull
+    String key(int id) {
+        return keys[id];
+    }
+
+    /**
+     * Номер служебного ключа, под которым срок хранения блока записывается в файлы.
+     */
+    int expiryKeyId() {
+        return expiryKeyId;
+    }
+}
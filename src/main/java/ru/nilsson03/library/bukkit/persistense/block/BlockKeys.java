@@ -0,0 +1,33 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+/**
+ * Упаковка координат блоков и чанков в примитивные ключи.
+ * Ключ чанка хранит его координаты X и Z в старших и младших 32 битах,
+ * ключ блока внутри чанка хранит локальные X и Z в младших 8 битах и Y в остальных.
+ */
+final class BlockKeys {
+
+    private BlockKeys() {
+        throw new AssertionError("Utility class should not be instantiated");
+    }
+
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    static long chunkKeyOfBlock(int x, int z) {
+        return chunkKey(x >> 4, z >> 4);
+    }
+
+    static int chunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    static int chunkZ(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    static long blockKey(int x, int y, int z) {
+        return ((long) y << 8) | ((z & 15) << 4) | (x & 15);
+    }
+}
@@ -1,23 +1,52 @@
 package ru.nilsson03.library.bukkit.persistense.block;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.PistonMoveReaction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.nilsson03.library.NPlugin;
+import ru.nilsson03.library.bukkit.scheduler.ScheduledTask;
+import ru.nilsson03.library.bukkit.util.loc.Cuboid;
 import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+import ru.nilsson03.library.collection.LongHashSet;
+import ru.nilsson03.library.collection.LongObjectMap;
 
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 @Getter
 public class BlockPersistence {
 
     @NotNull
-    private static final Map<NPlugin, Set<BlockData>> dataContainer = new HashMap<>();
+    private static final Map<NPlugin, BlockDataStore> dataContainer = new HashMap<>();
+    @NotNull
+    private static final Map<NPlugin, List<BlockPersistence>> instances = new HashMap<>();
+
+    private static final String LEGACY_FILE_NAME = "blockdata.dat";
+    private static final String MIGRATION_MARKER_NAME = "legacy.migrated";
+    private static final String LEGACY_FILTER = "ru.nilsson03.library.bukkit.persistense.block.BlockPersistence$SerializableBlockData;"
+            + "java.util.HashSet;java.util.HashMap;java.lang.String;java.lang.Number;java.lang.Integer;java.lang.Long;"
+            + "java.lang.Double;java.lang.Float;java.lang.Short;java.lang.Byte;java.lang.Boolean;!*";
+    static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMinutes(5);
+    private static final Duration JOURNAL_SYNC_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration EXPIRY_CHECK_INTERVAL = Duration.ofMillis(BlockExpiryWheel.TICK_MILLIS);
 
     @NotNull
     private final NPlugin plugin;
@@ -25,13 +54,69 @@ public class BlockPersistence {
     private final Consumer<BlockData> consumerOnDelete;
     @Nullable
     private final Runnable actionOnLoad;
+    private final boolean lazyChunkLoading;
+    @NotNull
+    private final Duration flushInterval;
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final BlockRegionStorage regionStorage;
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final BlockJournal journal;
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final List<ScheduledTask> tasks = new ArrayList<>();
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final BlockExpiryWheel expiryWheel = new BlockExpiryWheel(System.currentTimeMillis());
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService ioExecutor;
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final Map<String, LongObjectMap<BlockChunk>> unsavedChunks = new HashMap<>();
+    @NotNull
+    @Getter(AccessLevel.NONE)
+    private final Map<String, LongHashSet> pendingUnloads = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private boolean unloadFlushScheduled;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean migrationPending;
+    @Getter(AccessLevel.NONE)
+    private boolean shutdown;
 
     public BlockPersistence(@NotNull NPlugin plugin, @Nullable Consumer<BlockData> consumerOnDelete, @Nullable Runnable actionOnLoad) {
+        this(plugin, consumerOnDelete, actionOnLoad, false, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    BlockPersistence(@NotNull NPlugin plugin, @Nullable Consumer<BlockData> consumerOnDelete, @Nullable Runnable actionOnLoad,
+                     boolean lazyChunkLoading, @NotNull Duration flushInterval) {
         this.plugin = Objects.requireNonNull(plugin, "Plugin cant be null!");
         this.consumerOnDelete = consumerOnDelete;
         this.actionOnLoad = actionOnLoad;
+        this.lazyChunkLoading = lazyChunkLoading;
+        this.flushInterval = Objects.requireNonNull(flushInterval, "Flush interval cant be null!");
+        this.regionStorage = new BlockRegionStorage(plugin.getName(), new File(plugin.getDataFolder(), "blockdata"),
+                store().dictionary());
+        this.journal = new BlockJournal(regionStorage.root());
+        this.ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, plugin.getName() + " BlockPersistence I/O");
+            thread.setDaemon(true);
+            return thread;
+        });
         Bukkit.getPluginManager().registerEvents(new BlockPersistenceHandle(this), plugin);
+        if (lazyChunkLoading) {
+            Bukkit.getPluginManager().registerEvents(new BlockPersistenceChunkHandle(this), plugin);
+        }
+        store().setExpiryWheel(expiryWheel);
+        instances.computeIfAbsent(plugin, k -> new ArrayList<>()).add(this);
         load();
+        startTasks();
+    }
+
+    @NotNull
+    public static BlockPersistenceBuilder builder(@NotNull NPlugin plugin) {
+        return new BlockPersistenceBuilder(plugin);
     }
 
     public BlockPersistence(@NotNull NPlugin plugin, @Nullable Consumer<BlockData> consumerOnDelete) {
@@ -47,6 +132,18 @@ public class BlockPersistence {
     }
 
     public void set(@NotNull Block block, @NotNull String key, @NotNull String value) {
+        set(block, key, value, null);
+    }
+
+    /**
+     * Записывает значение и ограничивает срок хранения данных блока. По истечении срока
+     * данные блока удаляются целиком и передаются в consumerOnDelete вместе с другими истёкшими за тик.
+     * В режиме ленивой загрузки данные невыгруженных чанков удаляются после загрузки чанка,
+     * а изменение блока в невыгруженном чанке записывается на диск, и чанк освобождается в следующем тике.
+     *
+     * @param ttl срок хранения, отсчитываемый от текущего момента; null сохраняет ранее заданный срок
+     */
+    public void set(@NotNull Block block, @NotNull String key, @NotNull String value, @Nullable Duration ttl) {
         Objects.requireNonNull(block, "Block cant be null!");
         Objects.requireNonNull(key, "Key cant be null!");
         Objects.requireNonNull(value, "Value cant be null!");
@@ -55,106 +152,865 @@ public class BlockPersistence {
             throw new IllegalArgumentException("Key or value cant be empty!");
         }
 
-        Set<BlockData> blockDataSet = dataContainer.computeIfAbsent(plugin, k -> new HashSet<>());
-        
-        BlockData existingData = blockDataSet.stream()
-                .filter(bd -> bd.equals(block))
-                .findFirst()
-                .orElse(null);
+        BlockDataStore store = store();
+        ensureChunkLoaded(store, block);
 
+        BlockData existingData = store.get(block);
         if (existingData != null) {
             existingData.set(key, value);
+            if (ttl != null) {
+                existingData.expireAt(System.currentTimeMillis() + ttl.toMillis());
+            }
         } else {
-            BlockData newData = new BlockData(block);
+            BlockData newData = new BlockData(store.dictionary(), block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
             newData.set(key, value);
-            blockDataSet.add(newData);
+            if (ttl != null) {
+                newData.expireAt(System.currentTimeMillis() + ttl.toMillis());
+            }
+            store.put(newData);
         }
+        releaseIfNotLoaded(block);
     }
 
+    /**
+     * Возвращает данные блока. В режиме ленивой загрузки данные блока в невыгруженном чанке
+     * читаются с диска без загрузки чанка в память, изменения таких данных не сохраняются.
+     */
     @Nullable
     public BlockData get(@NotNull Block block) {
         Objects.requireNonNull(block, "Block cant be null!");
 
-        Set<BlockData> blockDataSet = dataContainer.get(plugin);
-        if (blockDataSet == null) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
             return null;
         }
 
-        return blockDataSet.stream()
-                .filter(bd -> bd.equals(block))
-                .findFirst()
-                .orElse(null);
+        if (lazyChunkLoading && isStoredOnly(store, block)) {
+            return readStored(store, block);
+        }
+        ensureChunkLoaded(store, block);
+        return store.get(block);
     }
 
     @Nullable
     public BlockData remove(@NotNull Block block) {
         Objects.requireNonNull(block, "Block cant be null!");
-        
-        Set<BlockData> blockDataSet = dataContainer.get(plugin);
-        if (blockDataSet == null) {
+
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
             return null;
         }
 
-        BlockData foundData = blockDataSet.stream()
-                .filter(bd -> bd.equals(block))
-                .findFirst()
-                .orElse(null);
+        ensureChunkLoaded(store, block);
+        BlockData removed = store.remove(block);
+        releaseIfNotLoaded(block);
+        return removed;
+    }
 
-        if (foundData != null) {
-            blockDataSet.remove(foundData);
+    public boolean has(@NotNull Block block) {
+        return get(block) != null;
+    }
+
+    /**
+     * Возвращает данные всех блоков внутри кубоида.
+     * Просматриваются только чанки, пересекающиеся с кубоидом, а сами чанки обходятся по мере чтения потока.
+     * В режиме ленивой загрузки данные невыгруженных чанков читаются с диска без загрузки в память,
+     * изменения таких данных не сохраняются.
+     *
+     * @return ленивый поток данных блоков
+     */
+    @NotNull
+    public Stream<BlockData> query(@NotNull Cuboid cuboid) {
+        Objects.requireNonNull(cuboid, "Cuboid cant be null!");
+
+        BlockDataStore store = store();
+        String worldName = cuboid.getWorldName();
+        int minChunkX = cuboid.getMinX() >> 4;
+        int maxChunkX = cuboid.getMaxX() >> 4;
+        int minChunkZ = cuboid.getMinZ() >> 4;
+        int maxChunkZ = cuboid.getMaxZ() >> 4;
+
+        Stream<BlockChunk> chunks = loadedChunks(store, worldName, minChunkX, maxChunkX, minChunkZ, maxChunkZ);
+        if (lazyChunkLoading) {
+            chunks = Stream.concat(chunks, storedChunks(store, worldName, minChunkX, maxChunkX, minChunkZ, maxChunkZ));
         }
 
-        return foundData;
+        return chunks.flatMap(chunk -> chunk.blocks().values().stream())
+                .filter(blockData -> blockData.x() >= cuboid.getMinX() && blockData.x() <= cuboid.getMaxX()
+                        && blockData.y() >= cuboid.getMinY() && blockData.y() <= cuboid.getMaxY()
+                        && blockData.z() >= cuboid.getMinZ() && blockData.z() <= cuboid.getMaxZ());
     }
 
-    public boolean has(@NotNull Block block) {
-        return get(block) != null;
+    /**
+     * Удаляет данные всех блоков внутри кубоида.
+     * В режиме ленивой загрузки затронутые невыгруженные чанки записываются на диск и освобождаются в следующем тике.
+     *
+     * @return удалённые данные
+     */
+    @NotNull
+    public List<BlockData> removeAll(@NotNull Cuboid cuboid) {
+        List<BlockData> matches = query(cuboid).collect(Collectors.toList());
+        if (matches.isEmpty()) {
+            return matches;
+        }
+
+        BlockDataStore store = store();
+        String worldName = cuboid.getWorldName();
+        LongHashSet loadedForRemoval = new LongHashSet();
+        List<BlockData> removed = new ArrayList<>(matches.size());
+        for (BlockData match : matches) {
+            int chunkX = match.x() >> 4;
+            int chunkZ = match.z() >> 4;
+            if (lazyChunkLoading && store.chunk(worldName, chunkX, chunkZ) == null) {
+                ensureChunkLoaded(store, worldName, chunkX, chunkZ);
+                loadedForRemoval.add(BlockKeys.chunkKey(chunkX, chunkZ));
+            }
+
+            BlockData blockData = store.remove(worldName, match.x(), match.y(), match.z());
+            if (blockData != null) {
+                removed.add(blockData);
+            }
+        }
+
+        for (long chunkKey : loadedForRemoval.toArray()) {
+            releaseIfNotLoaded(worldName, BlockKeys.chunkX(chunkKey), BlockKeys.chunkZ(chunkKey));
+        }
+        return removed;
     }
 
-    public void save() {
-        File dataFile = new File(plugin.getDataFolder(), "blockdata.dat");
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(dataFile))) {
-            Set<BlockData> allData = dataContainer.get(plugin);
-            if (allData == null) {
-                oos.writeObject(new HashSet<SerializableBlockData>());
-                return;
+    /**
+     * Удаляет данные разрушенных блоков одной операцией и передаёт их в consumerOnDelete.
+     */
+    void removeBlocks(@NotNull Collection<Block> blocks) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null || blocks.isEmpty()) {
+            return;
+        }
+
+        ensureChunksLoaded(store, blocks);
+        List<BlockData> removed = new ArrayList<>();
+        store.removeAll(blocks, removed::add);
+        if (hasConsumerOnDelete()) {
+            removed.forEach(consumerOnDelete);
+        }
+    }
+
+    /**
+     * Переносит данные блока на новую позицию в том же мире.
+     */
+    void moveBlock(@NotNull Block from, @NotNull Block to) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
+            return;
+        }
+
+        ensureChunkLoaded(store, from);
+        BlockData blockData = store.remove(from);
+        if (blockData != null) {
+            ensureChunkLoaded(store, to);
+            store.put(blockData.relocate(to.getX(), to.getY(), to.getZ()));
+        }
+    }
+
+    /**
+     * Переносит данные сдвинутых поршнем блоков на одну позицию в направлении движения.
+     * Данные блоков, которые поршень ломает, удаляются и передаются в consumerOnDelete.
+     */
+    void moveBlocks(@NotNull Collection<Block> blocks, @NotNull BlockFace direction) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null || blocks.isEmpty()) {
+            return;
+        }
+
+        ensureChunksLoaded(store, blocks);
+        List<BlockData> moved = new ArrayList<>();
+        List<BlockData> broken = new ArrayList<>();
+        for (Block block : blocks) {
+            BlockData blockData = store.remove(block);
+            if (blockData == null) {
+                continue;
+            }
+            if (block.getPistonMoveReaction() == PistonMoveReaction.BREAK) {
+                broken.add(blockData);
+            } else {
+                moved.add(blockData);
+            }
+        }
+
+        for (BlockData blockData : moved) {
+            int x = blockData.x() + direction.getModX();
+            int y = blockData.y() + direction.getModY();
+            int z = blockData.z() + direction.getModZ();
+            if (lazyChunkLoading) {
+                ensureChunkLoaded(store, blockData.worldName(), x >> 4, z >> 4);
             }
+            store.put(blockData.relocate(x, y, z));
+        }
+
+        if (hasConsumerOnDelete()) {
+            broken.forEach(consumerOnDelete);
+        }
+    }
+
+    /**
+     * Записывает изменения и дожидается окончания записи.
+     * Блокирует вызывающий поток, поэтому предназначен для выключения плагина,
+     * в остальных случаях используйте {@link #saveAsync()}.
+     */
+    public void save() {
+        try {
+            int saved = saveAsync().join();
+            ConsoleLogger.debug(plugin.getName(), "Saved %s block data entries", saved);
+        } catch (CompletionException e) {
+            ConsoleLogger.error(plugin.getName(), "Failed to save block data %s", e.getCause().getMessage());
+        }
+    }
 
-            Set<SerializableBlockData> serializableData = new HashSet<>();
-            for (BlockData blockData : allData) {
-                serializableData.add(new SerializableBlockData(blockData));
+    /**
+     * Записывает на диск только чанки, изменённые после предыдущего сохранения,
+     * и удаляет записанные сегменты журнала. Вызывается автоматически с интервалом {@link #getFlushInterval()}.
+     * В вызывающем потоке снимается только копия изменённых чанков и закрывается сегмент журнала в памяти.
+     * Запись журнала, сериализация и запись регионов с fsync выполняются в отдельном потоке ввода-вывода.
+     *
+     * @return future с количеством записанных блоков
+     */
+    @NotNull
+    public CompletableFuture<Integer> saveAsync() {
+        flushPendingUnloads();
+        Map<String, LongObjectMap<BlockChunk>> snapshot = snapshotDirtyChunks(store());
+        long lastSegment = journal.seal();
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                journal.flushSealed();
+                return true;
+            } catch (IOException e) {
+                ConsoleLogger.error(plugin.getName(), "Failed to write block data journal %s", e.getMessage());
+                return false;
             }
-            oos.writeObject(serializableData);
-            ConsoleLogger.info(plugin.getName(), "Saved %s block data entries", serializableData.size());
+        }, ioExecutor).thenCompose(journalWritten -> writeSnapshot(snapshot).thenApply(saved -> {
+            if (journalWritten && lastSegment >= 0) {
+                try {
+                    journal.deleteSegments(lastSegment);
+                } catch (IOException e) {
+                    ConsoleLogger.warn(plugin.getName(), "Failed to delete block data journal segments %s", e.getMessage());
+                }
+            }
+            return saved;
+        }));
+    }
+
+    /**
+     * Останавливает все хранилища данных блоков плагина. Вызывается {@link NPlugin} при выключении плагина.
+     */
+    public static void shutdownAll(@NotNull NPlugin plugin) {
+        List<BlockPersistence> persistences = instances.remove(plugin);
+        if (persistences != null) {
+            new ArrayList<>(persistences).forEach(BlockPersistence::shutdown);
+        }
+    }
+
+    /**
+     * Останавливает периодическое сохранение, записывает изменения, закрывает журнал
+     * и останавливает поток ввода-вывода. Вызывается автоматически при выключении плагина,
+     * повторные вызовы ничего не делают.
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+
+        for (ScheduledTask task : tasks) {
+            plugin.taskScheduler().cancelTask(task.getTaskId());
+        }
+        tasks.clear();
+
+        save();
+        try {
+            journal.close();
         } catch (IOException e) {
-            ConsoleLogger.info(plugin.getName(), "Failed to save block data %s", e.getMessage());
+            ConsoleLogger.error(plugin.getName(), "Failed to close block data journal %s", e.getMessage());
+        }
+        store().setJournal(null);
+        store().setExpiryWheel(null);
+        ioExecutor.shutdown();
+
+        List<BlockPersistence> persistences = instances.get(plugin);
+        if (persistences != null) {
+            persistences.remove(this);
+            if (persistences.isEmpty()) {
+                instances.remove(plugin);
+            }
+        }
+        if (!instances.containsKey(plugin)) {
+            dataContainer.remove(plugin);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Загружает данные блоков. Файл старого формата переносится в файлы регионов, пока перенос не завершится успешно.
+     * Если перенести его не удалось, изменения не записываются на диск до следующей успешной попытки,
+     * чтобы данные старого файла не были потеряны.
+     */
     public void load() {
-        File dataFile = new File(plugin.getDataFolder(), "blockdata.dat");
-        if (!dataFile.exists()) {
+        BlockDataStore store = store();
+        File legacyFile = new File(plugin.getDataFolder(), LEGACY_FILE_NAME);
+        migrationPending = legacyFile.exists() && !migrationMarker().exists() && !migrateLegacyFile(legacyFile);
+        if (migrationPending) {
+            ConsoleLogger.error(plugin.getName(), "Block data will not be saved until %s is migrated, fix the file and restart the server",
+                    legacyFile.getPath());
+        } else if (!journal.isOpen()) {
+            recoverJournal();
+            try {
+                journal.open();
+                store.setJournal(journal);
+            } catch (IOException e) {
+                ConsoleLogger.error(plugin.getName(), "Failed to open block data journal %s", e.getMessage());
+            }
+        }
+
+        if (lazyChunkLoading) {
+            for (World world : Bukkit.getWorlds()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    ensureChunkLoaded(store, world.getName(), chunk.getX(), chunk.getZ());
+                }
+            }
+        } else {
+            regionStorage.loadAll(store);
+            synchronized (unsavedChunks) {
+                unsavedChunks.forEach((worldName, chunks) ->
+                        chunks.forEachValue(unsaved -> restoreChunk(store, worldName, unsaved)));
+            }
+        }
+
+        if (hasActionOnLoad()) {
+            actionOnLoad.run();
+        }
+        ConsoleLogger.info(plugin.getName(), "Loaded %s block data entries", store.size());
+    }
+
+    void onChunkLoad(@NotNull String worldName, int chunkX, int chunkZ) {
+        LongHashSet pending = pendingUnloads.get(worldName);
+        if (pending != null) {
+            pending.remove(BlockKeys.chunkKey(chunkX, chunkZ));
+        }
+        ensureChunkLoaded(store(), worldName, chunkX, chunkZ);
+    }
+
+    void onChunkUnload(@NotNull String worldName, int chunkX, int chunkZ) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
             return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(dataFile))) {
-            Set<SerializableBlockData> serializableData = (Set<SerializableBlockData>) ois.readObject();
-            Set<BlockData> blockDataSet = dataContainer.computeIfAbsent(plugin, k -> new HashSet<>());
+        BlockChunk chunk = store.chunk(worldName, chunkX, chunkZ);
+        if (chunk == null) {
+            return;
+        }
+
+        if (!chunk.isDirty()) {
+            store.removeChunk(worldName, chunkX, chunkZ);
+            return;
+        }
+
+        pendingUnloads.computeIfAbsent(worldName, k -> new LongHashSet()).add(chunk.chunkKey());
+        scheduleUnloadFlush();
+    }
+
+    void onWorldUnload(@NotNull String worldName) {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
+            return;
+        }
+
+        flushPendingUnloads();
+        LongObjectMap<BlockChunk> chunks = store.chunks(worldName);
+        if (chunks == null) {
+            return;
+        }
+
+        Map<String, LongObjectMap<BlockChunk>> snapshot = new HashMap<>();
+        for (BlockChunk chunk : chunks.values()) {
+            store.removeChunk(worldName, chunk.chunkX(), chunk.chunkZ());
+            if (chunk.isDirty()) {
+                addToSnapshot(snapshot, worldName, chunk);
+            }
+        }
+        writeSnapshot(snapshot);
+    }
+
+    @NotNull
+    private BlockDataStore store() {
+        return dataContainer.computeIfAbsent(plugin, k -> new BlockDataStore(new BlockKeyDictionary()));
+    }
+
+    private void startTasks() {
+        tasks.add(plugin.taskScheduler().createTask(this::saveAsync)
+                .withName("BlockPersistence flush")
+                .withDelay(flushInterval)
+                .withInterval(flushInterval)
+                .schedule());
+        tasks.add(plugin.taskScheduler().createTask(this::syncJournal)
+                .withName("BlockPersistence journal sync")
+                .withDelay(JOURNAL_SYNC_INTERVAL)
+                .withInterval(JOURNAL_SYNC_INTERVAL)
+                .async()
+                .schedule());
+        tasks.add(plugin.taskScheduler().createTask(this::expireEntries)
+                .withName("BlockPersistence expiry")
+                .withDelay(EXPIRY_CHECK_INTERVAL)
+                .withInterval(EXPIRY_CHECK_INTERVAL)
+                .schedule());
+    }
+
+    /**
+     * Удаляет данные блоков, срок хранения которых истёк, и передаёт их в consumerOnDelete одним пакетом.
+     * Блоки, которые заменены в хранилище или срок которых продлён после продвижения колеса, пропускаются.
+     */
+    private void expireEntries() {
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<BlockData> due = expiryWheel.advance(now);
+        if (due.isEmpty()) {
+            return;
+        }
 
+        List<BlockData> expired = new ArrayList<>(due.size());
+        for (BlockData blockData : due) {
+            long expiresAt = blockData.expiresAt();
+            if (expiresAt == 0 || expiresAt > now
+                    || store.get(blockData.worldName(), blockData.x(), blockData.y(), blockData.z()) != blockData) {
+                continue;
+            }
+            store.remove(blockData.worldName(), blockData.x(), blockData.y(), blockData.z());
+            expired.add(blockData);
+        }
+
+        if (hasConsumerOnDelete()) {
+            expired.forEach(consumerOnDelete);
+        }
+    }
+
+    private void syncJournal() {
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            ConsoleLogger.error(plugin.getName(), "Failed to write block data journal %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Переносит в файлы регионов изменения, оставшиеся в журнале после аварийного завершения.
+     * Чанки, которые не удалось записать, остаются в памяти и записываются при следующем сохранении,
+     * а сегменты журнала сохраняются до успешной записи.
+     */
+    private void recoverJournal() {
+        if (!journal.hasSegments()) {
+            return;
+        }
+
+        BlockDataStore recovered = new BlockDataStore(store().dictionary());
+        int applied;
+        try {
+            applied = BlockJournal.replay(plugin.getName(), regionStorage.root(), regionStorage, recovered);
+        } catch (IOException e) {
+            ConsoleLogger.error(plugin.getName(), "Failed to read block data journal %s", e.getMessage());
+            return;
+        }
+
+        boolean failed = false;
+        for (String worldName : recovered.worldNames()) {
+            List<BlockChunk> dirty = new ArrayList<>();
+            recovered.chunks(worldName).forEachValue(chunk -> {
+                if (chunk.isDirty()) {
+                    dirty.add(chunk);
+                }
+            });
+
+            try {
+                regionStorage.saveChunks(worldName, dirty);
+            } catch (IOException e) {
+                ConsoleLogger.error(plugin.getName(), "Failed to recover block data of world %s: %s", worldName, e.getMessage());
+                dirty.forEach(chunk -> markUnsaved(worldName, chunk));
+                failed = true;
+            }
+        }
+
+        if (!failed) {
+            try {
+                journal.deleteSegments(Long.MAX_VALUE);
+            } catch (IOException e) {
+                ConsoleLogger.warn(plugin.getName(), "Failed to delete block data journal segments %s", e.getMessage());
+            }
+        }
+        ConsoleLogger.info(plugin.getName(), "Recovered %s block data changes from journal", applied);
+    }
+
+    /**
+     * Чанки хранилища в заданном диапазоне. Перебирается либо диапазон, либо чанки мира - что меньше.
+     */
+    @NotNull
+    private Stream<BlockChunk> loadedChunks(@NotNull BlockDataStore store, @NotNull String worldName,
+                                            int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ) {
+        LongObjectMap<BlockChunk> chunks = store.chunks(worldName);
+        if (chunks == null) {
+            return Stream.empty();
+        }
+
+        long area = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+        if (area > chunks.size()) {
+            return chunks.values().stream().filter(chunk ->
+                    chunk.chunkX() >= minChunkX && chunk.chunkX() <= maxChunkX
+                            && chunk.chunkZ() >= minChunkZ && chunk.chunkZ() <= maxChunkZ);
+        }
+
+        List<BlockChunk> result = new ArrayList<>();
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                BlockChunk chunk = chunks.get(BlockKeys.chunkKey(chunkX, chunkZ));
+                if (chunk != null) {
+                    result.add(chunk);
+                }
+            }
+        }
+        return result.stream();
+    }
+
+    /**
+     * Чанки диапазона, которые не загружены в хранилище, прочитанные из файлов регионов
+     * и из копий, запись которых ещё не завершена. Регионы читаются по мере обхода потока.
+     */
+    @NotNull
+    private Stream<BlockChunk> storedChunks(@NotNull BlockDataStore store, @NotNull String worldName,
+                                            int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ) {
+        int minRegionX = BlockRegionFile.regionCoord(minChunkX);
+        int maxRegionX = BlockRegionFile.regionCoord(maxChunkX);
+        int minRegionZ = BlockRegionFile.regionCoord(minChunkZ);
+        int maxRegionZ = BlockRegionFile.regionCoord(maxChunkZ);
+
+        return IntStream.rangeClosed(minRegionX, maxRegionX).boxed()
+                .flatMap(regionX -> IntStream.rangeClosed(minRegionZ, maxRegionZ)
+                        .mapToObj(regionZ -> BlockKeys.chunkKey(regionX, regionZ)))
+                .flatMap(regionKey -> {
+                    int regionX = BlockKeys.chunkX(regionKey);
+                    int regionZ = BlockKeys.chunkZ(regionKey);
+                    BlockDataStore region = new BlockDataStore(store.dictionary());
+                    File file = regionStorage.regionFile(worldName, regionX, regionZ);
+                    if (file.exists()) {
+                        try {
+                            BlockRegionFile.read(file, worldName, store.dictionary(), region::putLoaded);
+                        } catch (IOException e) {
+                            ConsoleLogger.error(plugin.getName(), "Failed to read block region %s: %s", file.getPath(), e.getMessage());
+                        }
+                    }
+
+                    synchronized (unsavedChunks) {
+                        LongObjectMap<BlockChunk> unsaved = unsavedChunks.get(worldName);
+                        if (unsaved != null) {
+                            unsaved.forEachValue(chunk -> {
+                                if (BlockRegionFile.regionCoord(chunk.chunkX()) == regionX
+                                        && BlockRegionFile.regionCoord(chunk.chunkZ()) == regionZ) {
+                                    restoreChunk(region, worldName, chunk);
+                                }
+                            });
+                        }
+                    }
+
+                    LongObjectMap<BlockChunk> chunks = region.chunks(worldName);
+                    if (chunks == null) {
+                        return Stream.empty();
+                    }
+                    return chunks.values().stream().filter(chunk ->
+                            chunk.chunkX() >= minChunkX && chunk.chunkX() <= maxChunkX
+                                    && chunk.chunkZ() >= minChunkZ && chunk.chunkZ() <= maxChunkZ
+                                    && store.chunk(worldName, chunk.chunkX(), chunk.chunkZ()) == null);
+                });
+    }
+
+    private void ensureChunksLoaded(@NotNull BlockDataStore store, @NotNull Collection<Block> blocks) {
+        if (lazyChunkLoading) {
+            for (Block block : blocks) {
+                ensureChunkLoaded(store, block);
+            }
+        }
+    }
+
+    private void ensureChunkLoaded(@NotNull BlockDataStore store, @NotNull Block block) {
+        if (lazyChunkLoading) {
+            ensureChunkLoaded(store, block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+        }
+    }
+
+    /**
+     * @return true, если чанк блока не загружен ни в хранилище, ни в мире
+     */
+    private boolean isStoredOnly(@NotNull BlockDataStore store, @NotNull Block block) {
+        int chunkX = block.getX() >> 4;
+        int chunkZ = block.getZ() >> 4;
+        return store.chunk(block.getWorld().getName(), chunkX, chunkZ) == null
+                && !block.getWorld().isChunkLoaded(chunkX, chunkZ);
+    }
+
+    /**
+     * Читает данные блока невыгруженного чанка с диска или из копии, запись которой ещё не завершена.
+     * Данные с истёкшим сроком хранения не возвращаются.
+     */
+    @Nullable
+    private BlockData readStored(@NotNull BlockDataStore store, @NotNull Block block) {
+        String worldName = block.getWorld().getName();
+        BlockDataStore stored = new BlockDataStore(store.dictionary());
+        ensureChunkLoaded(stored, worldName, block.getX() >> 4, block.getZ() >> 4);
+
+        BlockData blockData = stored.get(worldName, block.getX(), block.getY(), block.getZ());
+        if (blockData == null) {
+            return null;
+        }
+        long expiresAt = blockData.expiresAt();
+        return expiresAt != 0 && expiresAt <= System.currentTimeMillis() ? null : blockData;
+    }
+
+    private void releaseIfNotLoaded(@NotNull Block block) {
+        if (lazyChunkLoading) {
+            releaseIfNotLoaded(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+        }
+    }
+
+    /**
+     * Освобождает чанк, загруженный в хранилище только для изменения данных, если мир его не загрузил.
+     * Изменённый чанк записывается на диск и выгружается в следующем тике.
+     */
+    private void releaseIfNotLoaded(@NotNull String worldName, int chunkX, int chunkZ) {
+        World world = Bukkit.getWorld(worldName);
+        if (world == null || !world.isChunkLoaded(chunkX, chunkZ)) {
+            onChunkUnload(worldName, chunkX, chunkZ);
+        }
+    }
+
+    private void ensureChunkLoaded(@NotNull BlockDataStore store, @NotNull String worldName, int chunkX, int chunkZ) {
+        if (store.chunk(worldName, chunkX, chunkZ) != null) {
+            return;
+        }
+
+        BlockChunk unsaved;
+        synchronized (unsavedChunks) {
+            LongObjectMap<BlockChunk> chunks = unsavedChunks.get(worldName);
+            unsaved = chunks != null ? chunks.get(BlockKeys.chunkKey(chunkX, chunkZ)) : null;
+        }
+
+        if (unsaved != null) {
+            restoreChunk(store, worldName, unsaved);
+        } else {
+            regionStorage.loadChunk(store, worldName, chunkX, chunkZ);
+        }
+    }
+
+    /**
+     * Загружает в хранилище чанк из копии, запись которой на диск ещё не завершена.
+     */
+    private void restoreChunk(@NotNull BlockDataStore store, @NotNull String worldName, @NotNull BlockChunk unsaved) {
+        store.removeChunk(worldName, unsaved.chunkX(), unsaved.chunkZ());
+        store.getOrCreateChunk(worldName, unsaved.chunkX(), unsaved.chunkZ());
+        unsaved.blocks().forEachValue(blockData -> store.putLoaded(blockData.copy()));
+    }
+
+    private void scheduleUnloadFlush() {
+        if (unloadFlushScheduled) {
+            return;
+        }
+
+        if (!plugin.isEnabled()) {
+            flushPendingUnloads();
+            return;
+        }
+
+        unloadFlushScheduled = true;
+        Bukkit.getScheduler().runTask(plugin, this::flushPendingUnloads);
+    }
+
+    /**
+     * Выгружает из памяти чанки, накопленные за тик, и записывает изменённые из них одним проходом по регионам.
+     */
+    private void flushPendingUnloads() {
+        unloadFlushScheduled = false;
+        BlockDataStore store = dataContainer.get(plugin);
+        if (store == null || pendingUnloads.isEmpty()) {
+            pendingUnloads.clear();
+            return;
+        }
+
+        Map<String, LongObjectMap<BlockChunk>> snapshot = new HashMap<>();
+        pendingUnloads.forEach((worldName, chunkKeys) -> {
+            for (long chunkKey : chunkKeys.toArray()) {
+                BlockChunk chunk = store.removeChunk(worldName, BlockKeys.chunkX(chunkKey), BlockKeys.chunkZ(chunkKey));
+                if (chunk != null && chunk.isDirty()) {
+                    addToSnapshot(snapshot, worldName, chunk);
+                }
+            }
+        });
+        pendingUnloads.clear();
+        writeSnapshot(snapshot);
+    }
+
+    /**
+     * Снимает копии изменённых чанков хранилища и добавляет к ним копии, запись которых ещё не удалась.
+     * Чанки хранилища после этого считаются сохранёнными.
+     */
+    @NotNull
+    private Map<String, LongObjectMap<BlockChunk>> snapshotDirtyChunks(@NotNull BlockDataStore store) {
+        Map<String, LongObjectMap<BlockChunk>> snapshot = new HashMap<>();
+        synchronized (unsavedChunks) {
+            unsavedChunks.forEach((worldName, chunks) -> chunks.forEach((chunkKey, chunk) ->
+                    snapshot.computeIfAbsent(worldName, k -> new LongObjectMap<>()).put(chunkKey, chunk)));
+        }
+
+        for (String worldName : new ArrayList<>(store.worldNames())) {
+            LongObjectMap<BlockChunk> chunks = store.chunks(worldName);
+            if (chunks == null) {
+                continue;
+            }
+            for (BlockChunk chunk : chunks.values()) {
+                if (!chunk.isDirty()) {
+                    continue;
+                }
+                addToSnapshot(snapshot, worldName, chunk);
+                if (!lazyChunkLoading && chunk.isEmpty()) {
+                    store.removeChunk(worldName, chunk.chunkX(), chunk.chunkZ());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void addToSnapshot(@NotNull Map<String, LongObjectMap<BlockChunk>> snapshot, @NotNull String worldName,
+                               @NotNull BlockChunk chunk) {
+        BlockChunk copy = markUnsaved(worldName, chunk);
+        snapshot.computeIfAbsent(worldName, k -> new LongObjectMap<>()).put(copy.chunkKey(), copy);
+    }
+
+    /**
+     * Добавляет копию чанка в список незаписанных чанков и снимает с оригинала флаг изменений.
+     * Копия остаётся в списке до успешной записи на диск.
+     */
+    @NotNull
+    private BlockChunk markUnsaved(@NotNull String worldName, @NotNull BlockChunk chunk) {
+        BlockChunk copy = chunk.snapshot();
+        chunk.markClean();
+        synchronized (unsavedChunks) {
+            unsavedChunks.computeIfAbsent(worldName, k -> new LongObjectMap<>()).put(copy.chunkKey(), copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Записывает снимок в потоке ввода-вывода. Записанные копии удаляются из списка незаписанных,
+     * если за время записи их не заменила более новая копия.
+     *
+     * @return future с количеством записанных блоков, завершается с ошибкой, если не удалось записать хотя бы один мир
+     */
+    @NotNull
+    private CompletableFuture<Integer> writeSnapshot(@NotNull Map<String, LongObjectMap<BlockChunk>> snapshot) {
+        if (migrationPending) {
+            return CompletableFuture.failedFuture(new IOException("Legacy block data has not been migrated"));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            int saved = 0;
+            IOException failure = null;
+            for (Map.Entry<String, LongObjectMap<BlockChunk>> entry : snapshot.entrySet()) {
+                String worldName = entry.getKey();
+                List<BlockChunk> chunks = entry.getValue().values();
+                try {
+                    saved += regionStorage.saveChunks(worldName, chunks);
+                } catch (IOException e) {
+                    ConsoleLogger.error(plugin.getName(), "Failed to save block data of world %s: %s", worldName, e.getMessage());
+                    failure = e;
+                    continue;
+                }
+
+                synchronized (unsavedChunks) {
+                    LongObjectMap<BlockChunk> unsaved = unsavedChunks.get(worldName);
+                    if (unsaved == null) {
+                        continue;
+                    }
+                    for (BlockChunk chunk : chunks) {
+                        if (unsaved.get(chunk.chunkKey()) == chunk) {
+                            unsaved.remove(chunk.chunkKey());
+                        }
+                    }
+                    if (unsaved.isEmpty()) {
+                        unsavedChunks.remove(worldName);
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            return saved;
+        }, ioExecutor);
+    }
+
+    @NotNull
+    private File migrationMarker() {
+        return new File(regionStorage.root(), MIGRATION_MARKER_NAME);
+    }
+
+    /**
+     * Переносит данные из файла Java-сериализации старых версий в файлы регионов.
+     * Десериализация ограничена фильтром, допускающим только классы старого формата.
+     * Данные, уже записанные в регионы, имеют приоритет над данными старого файла, поэтому перенос можно повторять.
+     * После успешного переноса в папке регионов создаётся отметка, отключающая повторный перенос.
+     *
+     * @return true, если данные перенесены
+     */
+    @SuppressWarnings("unchecked")
+    private boolean migrateLegacyFile(@NotNull File legacyFile) {
+        BlockDataStore store = new BlockDataStore(store().dictionary());
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+            ois.setObjectInputFilter(ObjectInputFilter.Config.createFilter(LEGACY_FILTER));
+            Set<SerializableBlockData> serializableData = (Set<SerializableBlockData>) ois.readObject();
             for (SerializableBlockData sbd : serializableData) {
-                BlockData blockData = sbd.toBlockData();
+                BlockData blockData = sbd.toBlockData(plugin.getName(), store.dictionary());
                 if (blockData != null) {
-                    blockDataSet.add(blockData);
+                    store.put(blockData);
                 }
             }
-            if (hasActionOnLoad()) {
-                actionOnLoad.run();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            ConsoleLogger.error(plugin.getName(), "Failed to load legacy block data %s", e.getMessage());
+            return false;
+        }
+
+        try {
+            for (String worldName : new ArrayList<>(store.worldNames())) {
+                List<BlockChunk> chunks = store.chunks(worldName).values();
+                for (BlockChunk chunk : chunks) {
+                    regionStorage.loadChunk(store, worldName, chunk.chunkX(), chunk.chunkZ());
+                }
+                regionStorage.saveChunks(worldName, chunks);
             }
-            ConsoleLogger.info(plugin.getName(), "Loaded %s block data entries", blockDataSet.size());
-        } catch (IOException | ClassNotFoundException e) {
-            ConsoleLogger.error(plugin.getName(), "Failed to load block data %s", e.getMessage());
+        } catch (IOException e) {
+            ConsoleLogger.error(plugin.getName(), "Failed to migrate block data %s", e.getMessage());
+            return false;
         }
+
+        try {
+            Files.createDirectories(regionStorage.root().toPath());
+            Files.createFile(migrationMarker().toPath());
+        } catch (FileAlreadyExistsException ignored) {
+        } catch (IOException e) {
+            ConsoleLogger.warn(plugin.getName(), "Failed to mark block data as migrated %s", e.getMessage());
+        }
+
+        File migratedFile = new File(legacyFile.getParentFile(), LEGACY_FILE_NAME + ".migrated");
+        if (!legacyFile.renameTo(migratedFile)) {
+            ConsoleLogger.warn(plugin.getName(), "Failed to rename legacy block data file %s", legacyFile.getPath());
+        }
+        ConsoleLogger.info(plugin.getName(), "Migrated %s block data entries to region files", store.size());
+        return true;
     }
 
     public boolean hasActionOnLoad() {
@@ -173,13 +1029,13 @@ public class BlockPersistence {
         @NotNull
         private final Map<String, Object> data;
 
-        public SerializableBlockData(BlockData blockData) {
-            this.blockKey = blockData.blockKey();
-            this.data = new HashMap<>(blockData.data());
+        private SerializableBlockData(String blockKey, Map<String, Object> data) {
+            this.blockKey = blockKey;
+            this.data = data;
         }
 
         @Nullable
-        public BlockData toBlockData() {
+        public BlockData toBlockData(@NotNull String pluginName, @NotNull BlockKeyDictionary dictionary) {
             try {
                 String[] parts = blockKey.split(":");
                 if (parts.length != 4) {
@@ -191,14 +1047,15 @@ public class BlockPersistence {
                 int y = Integer.parseInt(parts[2]);
                 int z = Integer.parseInt(parts[3]);
 
-                World world = Bukkit.getWorld(worldName);
-                if (world == null) {
-                    return null;
-                }
-
-                Block block = world.getBlockAt(x, y, z);
-                BlockData blockData = new BlockData(block);
-                data.forEach(blockData::set);
+                BlockData blockData = new BlockData(dictionary, worldName, x, y, z);
+                data.forEach((key, value) -> {
+                    if (BlockDataCodec.tagOf(value) == BlockDataCodec.TAG_UNSUPPORTED) {
+                        ConsoleLogger.warn(pluginName, "Skipping legacy block data value of unsupported type %s for key %s",
+                                value == null ? "null" : value.getClass().getName(), key);
+                    } else {
+                        blockData.set(key, value);
+                    }
+                });
                 return blockData;
             } catch (Exception e) {
                 return null;
@@ -0,0 +1,59 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.nilsson03.library.NPlugin;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+public class BlockPersistenceBuilder {
+
+    @NotNull
+    private final NPlugin plugin;
+    @Nullable
+    private Consumer<BlockData> consumerOnDelete;
+    @Nullable
+    private Runnable actionOnLoad;
+    private boolean lazyChunkLoading;
+    @NotNull
+    private Duration flushInterval = BlockPersistence.DEFAULT_FLUSH_INTERVAL;
+
+    BlockPersistenceBuilder(@NotNull NPlugin plugin) {
+        this.plugin = Objects.requireNonNull(plugin, "Plugin cant be null!");
+    }
+
+    public BlockPersistenceBuilder withDeleteConsumer(@Nullable Consumer<BlockData> consumerOnDelete) {
+        this.consumerOnDelete = consumerOnDelete;
+        return this;
+    }
+
+    public BlockPersistenceBuilder withLoadAction(@Nullable Runnable actionOnLoad) {
+        this.actionOnLoad = actionOnLoad;
+        return this;
+    }
+
+    /**
+     * Хранить в памяти только данные загруженных чанков.
+     * Данные чанка читаются с диска при его загрузке и записываются обратно при выгрузке,
+     * поэтому время запуска не зависит от общего количества сохранённых блоков.
+     */
+    public BlockPersistenceBuilder lazyChunkLoading() {
+        this.lazyChunkLoading = true;
+        return this;
+    }
+
+    /**
+     * Интервал фоновой записи изменённых чанков на диск. Между записями изменения
+     * сохраняются в журнал и восстанавливаются из него после аварийного завершения.
+     */
+    public BlockPersistenceBuilder withFlushInterval(@NotNull Duration flushInterval) {
+        this.flushInterval = Objects.requireNonNull(flushInterval, "Flush interval cant be null!");
+        return this;
+    }
+
+    public BlockPersistence build() {
+        return new BlockPersistence(plugin, consumerOnDelete, actionOnLoad, lazyChunkLoading, flushInterval);
+    }
+}
@@ -0,0 +1,41 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.bukkit.Chunk;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Загружает и выгружает данные блоков вместе с чанками мира
+ * для BlockPersistence в режиме ленивой загрузки.
+ */
+public class BlockPersistenceChunkHandle implements Listener {
+
+    @NotNull
+    private final BlockPersistence persistence;
+
+    public BlockPersistenceChunkHandle(@NotNull BlockPersistence blockPersistence) {
+        this.persistence = blockPersistence;
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Chunk chunk = event.getChunk();
+        persistence.onChunkLoad(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        persistence.onChunkUnload(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        persistence.onWorldUnload(event.getWorld().getName());
+    }
+}
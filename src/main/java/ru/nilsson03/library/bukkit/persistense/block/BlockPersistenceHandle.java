@@ -1,11 +1,21 @@
 package ru.nilsson03.library.bukkit.persistense.block;
 
+import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collections;
+
+/**
+ * Поддерживает данные блоков в соответствии с миром: удаляет данные разрушенных блоков
+ * и переносит данные блоков, сдвинутых поршнями. Блоки одного события обрабатываются одной операцией.
+ */
 public class BlockPersistenceHandle implements Listener {
 
     @NotNull
@@ -25,4 +35,51 @@ public class BlockPersistenceHandle implements Listener {
             }
         }
     }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        persistence.removeBlocks(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        persistence.removeBlocks(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        persistence.removeBlocks(Collections.singletonList(event.getBlock()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        persistence.removeBlocks(Collections.singletonList(event.getBlock()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        Block block = event.getBlock();
+        if (block.getType() == Material.DRAGON_EGG) {
+            persistence.moveBlock(block, event.getToBlock());
+        } else {
+            persistence.removeBlocks(Collections.singletonList(event.getToBlock()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        if (event.getTo().isAir()) {
+            persistence.removeBlocks(Collections.singletonList(event.getBlock()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        persistence.moveBlocks(event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        persistence.moveBlocks(event.getBlocks(), event.getDirection());
+    }
 }
@@ -0,0 +1,307 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nilsson03.library.collection.LongObjectMap;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Бинарный формат региона данных блоков (32x32 чанка в одном файле).
+ *
+ * <pre>
+ * int      magic
+ * byte     version
+ * varint   regionX, regionZ (zigzag)
+ * varint   количество ключей, далее ключи (varint длина + UTF-8)
+ * varint   количество чанков, далее для каждого: short локальный индекс, int смещение, int длина
+ * ...      данные чанков
+ *
+ * чанк:    varint количество блоков, далее для каждого блока:
+ *          byte локальные X/Z, varint Y (zigzag), varint количество значений,
+ *          далее для каждого значения: varint индекс ключа, byte тег, значение
+ * </pre>
+ */
+final class BlockRegionFile {
+
+    static final String EXTENSION = ".bpr";
+    static final int REGION_SHIFT = 5;
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x42505246;
+    private static final byte VERSION = 1;
+    private static final int HEADER_READ_AHEAD = 16 * 1024;
+
+    private BlockRegionFile() {
+        throw new AssertionError("Utility class should not be instantiated");
+    }
+
+    static int regionCoord(int chunkCoord) {
+        return chunkCoord >> REGION_SHIFT;
+    }
+
+    @NotNull
+    static String fileName(int regionX, int regionZ) {
+        return "r." + regionX + "." + regionZ + EXTENSION;
+    }
+
+    /**
+     * Записывает чанки одного региона в файл.
+     *
+     * @return количество записанных блоков
+     */
+    static int write(@NotNull File file, int regionX, int regionZ, @NotNull Collection<BlockChunk> chunks) throws IOException {
+        KeyIndex keyIndexes = new KeyIndex();
+        List<byte[]> payloads = new ArrayList<>(chunks.size());
+        int written = 0;
+
+        for (BlockChunk chunk : chunks) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + chunk.size() * 32);
+            DataOutputStream out = new DataOutputStream(buffer);
+            written += writeChunk(out, chunk, keyIndexes);
+            payloads.add(buffer.toByteArray());
+        }
+
+        ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream(256);
+        DataOutputStream header = new DataOutputStream(headerBuffer);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        BlockDataCodec.writeVarInt(header, BlockDataCodec.zigzag(regionX));
+        BlockDataCodec.writeVarInt(header, BlockDataCodec.zigzag(regionZ));
+        BlockDataCodec.writeVarInt(header, keyIndexes.keys.size());
+        for (String key : keyIndexes.keys) {
+            BlockDataCodec.writeString(header, key);
+        }
+        BlockDataCodec.writeVarInt(header, chunks.size());
+
+        int offset = header.size() + chunks.size() * 10;
+        int index = 0;
+        for (BlockChunk chunk : chunks) {
+            byte[] payload = payloads.get(index++);
+            header.writeShort(localIndex(chunk.chunkX(), chunk.chunkZ()));
+            header.writeInt(offset);
+            header.writeInt(payload.length);
+            offset += payload.length;
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            OutputStream out = new BufferedOutputStream(fileOut);
+            headerBuffer.writeTo(out);
+            for (byte[] payload : payloads) {
+                out.write(payload);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        replace(tempFile, file);
+        return written;
+    }
+
+    /**
+     * Заменяет файл региона записанным временным файлом так,
+     * чтобы при сбое на диске оставалась либо старая, либо новая версия.
+     */
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Читает все блоки региона и передаёт их в consumer.
+     *
+     * @return количество прочитанных блоков
+     */
+    static int read(@NotNull File file, @NotNull String worldName, @NotNull BlockKeyDictionary dictionary,
+                    @NotNull Consumer<BlockData> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            Header header = readHeader(buffer, dictionary);
+            int read = 0;
+            for (int i = 0; i < header.chunkCount; i++) {
+                buffer.position(header.offsets[i]);
+                read += readChunk(buffer, worldName, dictionary, header, i, consumer);
+            }
+            return read;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupted region file " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Читает блоки одного чанка, не загружая остальные чанки региона.
+     *
+     * @return количество прочитанных блоков
+     */
+    static int readChunk(@NotNull File file, @NotNull String worldName, @NotNull BlockKeyDictionary dictionary,
+                         int chunkX, int chunkZ, @NotNull Consumer<BlockData> consumer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) Math.min(raf.length(), HEADER_READ_AHEAD)];
+            raf.readFully(bytes);
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            Header header;
+            try {
+                header = readHeader(buffer, dictionary);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                if (bytes.length == raf.length()) {
+                    throw e;
+                }
+                // заголовок длиннее упреждающего чтения, строка или количество ключей обрезаны его границей
+                bytes = new byte[(int) raf.length()];
+                raf.seek(0);
+                raf.readFully(bytes);
+                buffer = ByteBuffer.wrap(bytes);
+                header = readHeader(buffer, dictionary);
+            }
+
+            int localIndex = localIndex(chunkX, chunkZ);
+            for (int i = 0; i < header.chunkCount; i++) {
+                if (header.localIndexes[i] != localIndex) {
+                    continue;
+                }
+
+                int offset = header.offsets[i];
+                int length = header.lengths[i];
+                if (offset + length <= bytes.length) {
+                    buffer.position(offset);
+                } else {
+                    byte[] payload = new byte[length];
+                    raf.seek(offset);
+                    raf.readFully(payload);
+                    buffer = ByteBuffer.wrap(payload);
+                }
+                return readChunk(buffer, worldName, dictionary, header, i, consumer);
+            }
+            return 0;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupted region file " + file.getName(), e);
+        }
+    }
+
+    private static int writeChunk(DataOutputStream out, BlockChunk chunk, KeyIndex keyIndexes) throws IOException {
+        LongObjectMap<BlockData> blocks = chunk.blocks();
+        BlockDataCodec.writeVarInt(out, blocks.size());
+
+        for (BlockData blockData : blocks.values()) {
+            out.writeByte(((blockData.x() & 15) << 4) | (blockData.z() & 15));
+            BlockDataCodec.writeVarInt(out, BlockDataCodec.zigzag(blockData.y()));
+
+            boolean expires = blockData.expiresAt() != 0;
+            BlockDataCodec.writeVarInt(out, blockData.entryCount() + (expires ? 1 : 0));
+            for (int i = 0; i < blockData.entryCount(); i++) {
+                BlockDataCodec.writeVarInt(out, keyIndexes.indexOf(blockData.dictionary(), blockData.keyIdAt(i)));
+                BlockDataCodec.writeSlot(out, blockData, i);
+            }
+            if (expires) {
+                BlockDataCodec.writeVarInt(out, keyIndexes.indexOf(blockData.dictionary(), blockData.dictionary().expiryKeyId()));
+                BlockDataCodec.writeExpiry(out, blockData.expiresAt());
+            }
+        }
+        return blocks.size();
+    }
+
+    private static int readChunk(ByteBuffer buffer, String worldName, BlockKeyDictionary dictionary, Header header,
+                                 int index, Consumer<BlockData> consumer) {
+        int local = header.localIndexes[index];
+        int chunkX = (header.regionX << REGION_SHIFT) | (local & 31);
+        int chunkZ = (header.regionZ << REGION_SHIFT) | ((local >> 5) & 31);
+
+        int blockCount = BlockDataCodec.readVarInt(buffer);
+        for (int i = 0; i < blockCount; i++) {
+            int localXZ = buffer.get() & 0xFF;
+            int x = (chunkX << 4) | (localXZ >> 4);
+            int z = (chunkZ << 4) | (localXZ & 15);
+            int y = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(buffer));
+
+            BlockData blockData = new BlockData(dictionary, worldName, x, y, z);
+            int entryCount = BlockDataCodec.readVarInt(buffer);
+            for (int j = 0; j < entryCount; j++) {
+                BlockDataCodec.readSlot(buffer, blockData, header.keyIds[BlockDataCodec.readVarInt(buffer)]);
+            }
+            consumer.accept(blockData);
+        }
+        return blockCount;
+    }
+
+    private static Header readHeader(ByteBuffer buffer, BlockKeyDictionary dictionary) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a block region file");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported block region file version " + version);
+        }
+
+        Header header = new Header();
+        header.regionX = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(buffer));
+        header.regionZ = BlockDataCodec.unzigzag(BlockDataCodec.readVarInt(buffer));
+
+        int keyCount = BlockDataCodec.readVarInt(buffer);
+        if (keyCount < 0 || keyCount > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid key count " + keyCount);
+        }
+        header.keyIds = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            header.keyIds[i] = dictionary.intern(BlockDataCodec.readString(buffer));
+        }
+
+        header.chunkCount = BlockDataCodec.readVarInt(buffer);
+        header.localIndexes = new int[header.chunkCount];
+        header.offsets = new int[header.chunkCount];
+        header.lengths = new int[header.chunkCount];
+        for (int i = 0; i < header.chunkCount; i++) {
+            header.localIndexes[i] = buffer.getShort() & 0xFFFF;
+            header.offsets[i] = buffer.getInt();
+            header.lengths[i] = buffer.getInt();
+        }
+        return header;
+    }
+
+    private static int localIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & 31) << 5) | (chunkX & 31);
+    }
+
+    /**
+     * Соответствие номеров ключей словаря плагина номерам ключей в заголовке файла.
+     */
+    private static final class KeyIndex {
+        private final List<String> keys = new ArrayList<>();
+        private int[] indexes = new int[0];
+
+        private int indexOf(BlockKeyDictionary dictionary, int keyId) {
+            if (keyId >= indexes.length) {
+                int previous = indexes.length;
+                indexes = Arrays.copyOf(indexes, Math.max(keyId + 1, previous << 1));
+                Arrays.fill(indexes, previous, indexes.length, -1);
+            }
+
+            int index = indexes[keyId];
+            if (index < 0) {
+                index = keys.size();
+                keys.add(dictionary.key(keyId));
+                indexes[keyId] = index;
+            }
+            return index;
+        }
+    }
+
+    private static final class Header {
+        private int regionX;
+        private int regionZ;
+        private int[] keyIds;
+        private int chunkCount;
+        private int[] localIndexes;
+        private int[] offsets;
+        private int[] lengths;
+    }
+}
@@ -0,0 +1,161 @@
+package ru.nilsson03.library.bukkit.persistense.block;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nilsson03.library.bukkit.util.log.ConsoleLogger;
+import ru.nilsson03.library.collection.LongObjectMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Раскладка файлов регионов на диске: {@code <root>/<мир>/r.<x>.<z>.bpr}.
+ */
+final class BlockRegionStorage {
+
+    @NotNull
+    private final String pluginName;
+    @NotNull
+    private final File root;
+    @NotNull
+    private final BlockKeyDictionary dictionary;
+
+    BlockRegionStorage(@NotNull String pluginName, @NotNull File root, @NotNull BlockKeyDictionary dictionary) {
+        this.pluginName = pluginName;
+        this.root = root;
+        this.dictionary = dictionary;
+    }
+
+    @NotNull
+    File root() {
+        return root;
+    }
+
+    @NotNull
+    File worldDirectory(@NotNull String worldName) {
+        return new File(root, worldName);
+    }
+
+    @NotNull
+    File regionFile(@NotNull String worldName, int regionX, int regionZ) {
+        return new File(worldDirectory(worldName), BlockRegionFile.fileName(regionX, regionZ));
+    }
+
+    /**
+     * Загружает все регионы всех миров в хранилище.
+     *
+     * @return количество загруженных блоков
+     */
+    int loadAll(@NotNull BlockDataStore store) {
+        File[] worldDirectories = root.listFiles(File::isDirectory);
+        if (worldDirectories == null) {
+            return 0;
+        }
+
+        int loaded = 0;
+        for (File worldDirectory : worldDirectories) {
+            File[] regionFiles = worldDirectory.listFiles((dir, name) -> name.endsWith(BlockRegionFile.EXTENSION));
+            if (regionFiles == null) {
+                continue;
+            }
+
+            for (File regionFile : regionFiles) {
+                try {
+                    loaded += BlockRegionFile.read(regionFile, worldDirectory.getName(), store.dictionary(), store::putLoaded);
+                } catch (IOException e) {
+                    ConsoleLogger.error(pluginName, "Failed to load block region %s: %s", regionFile.getPath(), e.getMessage());
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Загружает данные одного чанка в хранилище.
+     * Чанк создаётся в хранилище даже при отсутствии данных на диске.
+     *
+     * @return загруженный чанк
+     */
+    @NotNull
+    BlockChunk loadChunk(@NotNull BlockDataStore store, @NotNull String worldName, int chunkX, int chunkZ) {
+        BlockChunk chunk = store.getOrCreateChunk(worldName, chunkX, chunkZ);
+        File file = regionFile(worldName, BlockRegionFile.regionCoord(chunkX), BlockRegionFile.regionCoord(chunkZ));
+        if (file.exists()) {
+            try {
+                BlockRegionFile.readChunk(file, worldName, store.dictionary(), chunkX, chunkZ, store::putLoaded);
+            } catch (IOException e) {
+                ConsoleLogger.error(pluginName, "Failed to load block chunk %s,%s from %s: %s",
+                        chunkX, chunkZ, file.getPath(), e.getMessage());
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Записывает указанные чанки в их регионы, сохраняя остальные чанки регионов без изменений.
+     * Пустые чанки удаляются из файлов, пустые регионы удаляются с диска.
+     *
+     * @return количество записанных блоков указанных чанков
+     */
+    int saveChunks(@NotNull String worldName, @NotNull Collection<BlockChunk> chunks) throws IOException {
+        LongObjectMap<List<BlockChunk>> regions = new LongObjectMap<>();
+        for (BlockChunk chunk : chunks) {
+            long regionKey = BlockKeys.chunkKey(
+                    BlockRegionFile.regionCoord(chunk.chunkX()),
+                    BlockRegionFile.regionCoord(chunk.chunkZ()));
+            List<BlockChunk> regionChunks = regions.get(regionKey);
+            if (regionChunks == null) {
+                regionChunks = new ArrayList<>();
+                regions.put(regionKey, regionChunks);
+            }
+            regionChunks.add(chunk);
+        }
+
+        int saved = 0;
+        for (long regionKey : regions.keys()) {
+            saved += mergeRegion(worldName, BlockKeys.chunkX(regionKey), BlockKeys.chunkZ(regionKey), regions.get(regionKey));
+        }
+        return saved;
+    }
+
+    private int mergeRegion(String worldName, int regionX, int regionZ, List<BlockChunk> updated) throws IOException {
+        File file = regionFile(worldName, regionX, regionZ);
+        LongObjectMap<BlockChunk> merged = new LongObjectMap<>();
+
+        if (file.exists()) {
+            BlockRegionFile.read(file, worldName, dictionary, blockData -> {
+                long chunkKey = BlockKeys.chunkKeyOfBlock(blockData.x(), blockData.z());
+                BlockChunk chunk = merged.get(chunkKey);
+                if (chunk == null) {
+                    chunk = new BlockChunk(null, blockData.x() >> 4, blockData.z() >> 4);
+                    merged.put(chunkKey, chunk);
+                }
+                chunk.put(blockData);
+            });
+        }
+
+        int saved = 0;
+        for (BlockChunk chunk : updated) {
+            if (chunk.isEmpty()) {
+                merged.remove(chunk.chunkKey());
+            } else {
+                merged.put(chunk.chunkKey(), chunk);
+                saved += chunk.size();
+            }
+        }
+
+        if (merged.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                ConsoleLogger.warn(pluginName, "Failed to delete empty block region %s", file.getPath());
+            }
+            return saved;
+        }
+
+        File worldDirectory = file.getParentFile();
+        if (!worldDirectory.exists() && !worldDirectory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + worldDirectory.getPath());
+        }
+        BlockRegionFile.write(file, regionX, regionZ, merged.values());
+        return saved;
+    }
+}
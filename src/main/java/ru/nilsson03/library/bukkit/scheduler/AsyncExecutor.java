@@ -0,0 +1,113 @@
+package ru.nilsson03.library.bukkit.scheduler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ограниченный исполнитель асинхронных задач планировщика. На Java 21+ каждая задача выполняется
+ * в виртуальном потоке, иначе - в пуле из фиксированного числа потоков-демонов.
+ * Количество принятых и ещё не завершённых задач ограничено: при переполнении новая задача отклоняется
+ * с {@link RejectedExecutionException}, что даёт вызывающему обратное давление вместо бесконечной очереди.
+ * Продолжения уже принятых цепочек не отклоняются, чтобы начатая работа не терялась.
+ */
+final class AsyncExecutor implements Executor {
+
+    private final ExecutorService delegate;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final int maxInFlight;
+    private final boolean virtual;
+
+    AsyncExecutor(String name, int parallelism, int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        ExecutorService virtualExecutor = newVirtualExecutor();
+        this.virtual = virtualExecutor != null;
+        if (virtualExecutor != null) {
+            this.delegate = virtualExecutor;
+            return;
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.delegate = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, name + " #" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            throw new RejectedExecutionException("Async queue is full (" + maxInFlight + " tasks)");
+        }
+
+        submit(command);
+    }
+
+    /**
+     * Выполняет продолжение цепочки без проверки лимита. Продолжения учитываются в количестве
+     * незавершённых задач, поэтому новые задачи отклоняются, пока цепочки не завершатся.
+     */
+    void executeContinuation(Runnable command) {
+        inFlight.incrementAndGet();
+        submit(command);
+    }
+
+    private void submit(Runnable command) {
+        try {
+            delegate.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Останавливает приём задач и ждёт завершения принятых.
+     *
+     * @return true, если все задачи завершились за отведённое время
+     */
+    boolean shutdown(long timeout, TimeUnit unit) {
+        delegate.shutdown();
+        try {
+            if (delegate.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Создаёт исполнитель виртуальных потоков через рефлексию, чтобы библиотека собиралась под Java 16.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ru.nilsson03.library.bukkit.scheduler;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Тяжёлая работа, разбитая на части и выполняемая в основном потоке с ограничением времени на тик.
+ * За тик выполняется хотя бы одна часть, затем части выполняются, пока не израсходован бюджет,
+ * оставшиеся переносятся на следующий тик.
+ */
+public class BudgetedJob {
+
+    private final Iterator<? extends Runnable> units;
+    private final long budgetNanos;
+    private final long total;
+    private final CompletableFuture<Long> future = new CompletableFuture<>();
+    private volatile long processed;
+
+    BudgetedJob(Iterator<? extends Runnable> units, long budgetNanos, long total) {
+        this.units = units;
+        this.budgetNanos = budgetNanos;
+        this.total = total;
+    }
+
+    /**
+     * @return future, завершающееся количеством выполненных частей, ошибкой первой упавшей части или отменой
+     */
+    public CompletableFuture<Long> getFuture() {
+        return future;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * @return общее количество частей или -1, если оно неизвестно
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return доля выполненных частей от 0 до 1 или -1, если общее количество неизвестно
+     */
+    public double getProgress() {
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            return 1;
+        }
+        return total > 0 ? Math.min(1, (double) processed / total) : total == 0 ? 1 : -1;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Отменяет выполнение оставшихся частей.
+     */
+    public boolean cancel() {
+        return future.cancel(false);
+    }
+
+    /**
+     * Выполняет части в пределах бюджета одного тика.
+     *
+     * @return true, если работа завершена и больше не должна выполняться
+     */
+    boolean runSlice() {
+        if (future.isDone()) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + budgetNanos;
+        long count = processed;
+        try {
+            do {
+                if (!units.hasNext()) {
+                    processed = count;
+                    future.complete(count);
+                    return true;
+                }
+                units.next().run();
+                count++;
+            } while (System.nanoTime() < deadline && !future.isDone());
+        } catch (Throwable e) {
+            processed = count;
+            future.completeExceptionally(e);
+            return true;
+        }
+        processed = count;
+        return future.isDone();
+    }
+}
@@ -6,25 +6,70 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.UUID;
 
+/**
+ * Запланированная задача. Задачи {@link TaskScheduler} хранятся в колесе таймеров и не создают
+ * собственную {@link BukkitTask}: задача - это узел списка ячейки колеса с действием и сроком в тиках.
+ */
 public class ScheduledTask {
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int CANCELLED = 2;
+
     private final UUID taskId;
     private final BukkitTask bukkitTask;
     private final long executionTime;
     private final boolean repeating;
 
+    private final TaskScheduler scheduler;
+    private final TimerWheel wheel;
+    private final long intervalTicks;
+    private Runnable action;
+    private volatile int state = PENDING;
+
+    Object coalesceKey;
+
+    long deadline;
+    int wheelLevel = -2;
+    int wheelSlot;
+    ScheduledTask wheelPrev;
+    ScheduledTask wheelNext;
+    ScheduledTask wheelTail;
+
     public ScheduledTask(UUID taskId, BukkitTask bukkitTask, long executionTime, boolean repeating) {
         this.taskId = taskId;
         this.bukkitTask = bukkitTask;
         this.executionTime = executionTime;
         this.repeating = repeating;
+        this.scheduler = null;
+        this.wheel = null;
+        this.action = null;
+        this.intervalTicks = 0;
+    }
+
+    ScheduledTask(UUID taskId, TaskScheduler scheduler, TimerWheel wheel, Runnable action, long intervalTicks) {
+        this.taskId = taskId;
+        this.bukkitTask = null;
+        this.executionTime = 0;
+        this.repeating = intervalTicks > 0;
+        this.scheduler = scheduler;
+        this.wheel = wheel;
+        this.action = action;
+        this.intervalTicks = intervalTicks;
     }
 
     public Duration getRemainingTime() {
+        if (wheel != null) {
+            return Duration.ofMillis(Math.max(0, wheel.ticksUntil(this)) * TaskScheduler.TICK_MILLIS);
+        }
         long remaining = executionTime - System.currentTimeMillis();
         return Duration.ofMillis(Math.max(0, remaining));
     }
 
     public Instant getExecutionTime() {
+        if (wheel != null) {
+            return Instant.now().plus(getRemainingTime());
+        }
         return Instant.ofEpochMilli(executionTime);
     }
 
@@ -37,11 +82,70 @@ public class ScheduledTask {
     }
 
     public boolean isCompleted() {
+        if (wheel != null) {
+            return state == COMPLETED;
+        }
         return !repeating && !bukkitTask.isCancelled()
                 && System.currentTimeMillis() >= executionTime;
     }
 
+    public boolean isCancelled() {
+        return wheel != null ? state == CANCELLED : bukkitTask.isCancelled();
+    }
+
     public void cancel() {
-        bukkitTask.cancel();
+        if (wheel == null) {
+            bukkitTask.cancel();
+            return;
+        }
+        if (state != PENDING) {
+            return;
+        }
+        state = CANCELLED;
+        wheel.remove(this);
+        scheduler.unregisterTask(taskId);
+        if (coalesceKey != null) {
+            scheduler.releaseCoalesceKey(coalesceKey, this);
+        }
+    }
+
+    TimerWheel getWheel() {
+        return wheel;
+    }
+
+    boolean isPending() {
+        return state == PENDING;
+    }
+
+    /**
+     * Заменяет действие ожидающей задачи при слиянии повторной отправки с тем же ключом.
+     */
+    void replaceAction(Runnable action) {
+        this.action = action;
+    }
+
+    /**
+     * Выполняет задачу, наступившую на текущем тике. Повторяющаяся задача возвращается в колесо,
+     * если не была отменена во время выполнения.
+     */
+    void run() {
+        if (state != PENDING) {
+            return;
+        }
+        if (coalesceKey != null) {
+            scheduler.releaseCoalesceKey(coalesceKey, this);
+        }
+        try {
+            action.run();
+        } finally {
+            if (repeating) {
+                if (state == PENDING) {
+                    wheel.add(this, intervalTicks);
+                }
+            } else if (state == PENDING) {
+                state = COMPLETED;
+                scheduler.unregisterTask(taskId);
+            }
+        }
     }
 }
@@ -1,11 +1,9 @@
 package ru.nilsson03.library.bukkit.scheduler;
 
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.time.Duration;
 import java.util.Objects;
-import java.util.UUID;
 import java.util.function.Consumer;
 
 public class TaskBuilder {
@@ -13,10 +11,13 @@ public class TaskBuilder {
     private final JavaPlugin plugin;
     private final Runnable task;
 
+    private String name;
     private Duration delay = Duration.ZERO;
     private Duration interval;
     private Consumer<Exception> errorHandler;
     private boolean async;
+    private Object coalesceKey;
+    private boolean debounce;
 
     public TaskBuilder(TaskScheduler scheduler, JavaPlugin plugin, Runnable task) {
         this.scheduler = Objects.requireNonNull(scheduler);
@@ -24,6 +25,15 @@ public class TaskBuilder {
         this.task = Objects.requireNonNull(task);
     }
 
+    /**
+     * Задаёт имя, под которым собирается статистика выполнения задачи.
+     * По умолчанию используется имя класса задачи.
+     */
+    public TaskBuilder withName(String name) {
+        this.name = Objects.requireNonNull(name);
+        return this;
+    }
+
     public TaskBuilder withDelay(Duration delay) {
         this.delay = Objects.requireNonNull(delay);
         return this;
@@ -44,36 +54,74 @@ public class TaskBuilder {
         return this;
     }
 
-    public ScheduledTask schedule() {
-        Runnable wrappedTask = createWrappedTask();
-        BukkitTask bukkitTask = createBukkitTask(wrappedTask);
+    /**
+     * Сливает задачу с ожидающей задачей с тем же ключом: выполнится одна задача с последним действием
+     * на сроке первой отправки. Несовместимо с повтором.
+     */
+    public TaskBuilder coalesce(Object key) {
+        this.coalesceKey = Objects.requireNonNull(key);
+        this.debounce = false;
+        return this;
+    }
+
+    /**
+     * Сливает задачу с ожидающей задачей с тем же ключом и переносит выполнение на задержку
+     * от последней отправки. Несовместимо с повтором.
+     */
+    public TaskBuilder debounce(Object key) {
+        this.coalesceKey = Objects.requireNonNull(key);
+        this.debounce = true;
+        return this;
+    }
 
-        return createScheduledTask(bukkitTask);
+    /**
+     * Добавляет задачу в колесо таймеров планировщика. Задержка и период округляются вверх до целых тиков,
+     * поэтому задача не выполняется раньше запрошенного времени.
+     */
+    public ScheduledTask schedule() {
+        long delayTicks = toTicks(delay);
+        if (coalesceKey != null) {
+            if (interval != null) {
+                throw new IllegalStateException("Coalesced task cant be repeating!");
+            }
+            return scheduler.scheduleCoalesced(coalesceKey, createWrappedTask(), delayTicks, async, debounce);
+        }
+        long intervalTicks = interval != null ? Math.max(1, toTicks(interval)) : 0;
+        return scheduler.schedule(createWrappedTask(), delayTicks, intervalTicks, async);
     }
 
     private Runnable createWrappedTask() {
+        TaskMetrics metrics = scheduler.metrics(name != null ? name : defaultName(task));
+        boolean mainThread = !async;
         return () -> {
+            long start = System.nanoTime();
             try {
                 task.run();
-            } catch (Exception e) {
-                handleError(e);
+            } catch (Throwable e) {
+                // Ошибки виртуальной машины учитываются в статистике и передаются планировщику
+                scheduler.recordExecution(metrics, System.nanoTime() - start, true, mainThread);
+                if (e instanceof Exception exception) {
+                    handleError(exception);
+                    return;
+                }
+                throw e;
             }
+            scheduler.recordExecution(metrics, System.nanoTime() - start, false, mainThread);
         };
     }
 
-    private BukkitTask createBukkitTask(Runnable task) {
-        long delayTicks = delay.toMillis() / 50;
-        long intervalTicks = interval != null ? interval.toMillis() / 50 : 0;
+    /**
+     * Возвращает имя класса задачи без сгенерированного суффикса лямбды.
+     */
+    private static String defaultName(Runnable task) {
+        String className = task.getClass().getName();
+        int lambdaIndex = className.indexOf("$$Lambda");
+        return lambdaIndex >= 0 ? className.substring(0, lambdaIndex) + " (lambda)" : className;
+    }
 
-        if (async) {
-            return interval != null
-                    ? plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, task, delayTicks, intervalTicks)
-                    : plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, task, delayTicks);
-        } else {
-            return interval != null
-                    ? plugin.getServer().getScheduler().runTaskTimer(plugin, task, delayTicks, intervalTicks)
-                    : plugin.getServer().getScheduler().runTaskLater(plugin, task, delayTicks);
-        }
+    private static long toTicks(Duration duration) {
+        long millis = Math.max(0, duration.toMillis());
+        return (millis + TaskScheduler.TICK_MILLIS - 1) / TaskScheduler.TICK_MILLIS;
     }
 
     private void handleError(Exception e) {
@@ -87,16 +135,4 @@ public class TaskBuilder {
             plugin.getLogger().severe("Task error: " + e.getMessage());
         }
     }
-
-    private ScheduledTask createScheduledTask(BukkitTask bukkitTask) {
-        ScheduledTask scheduledTask = new ScheduledTask(
-                UUID.randomUUID(),
-                bukkitTask,
-                System.currentTimeMillis() + delay.toMillis(),
-                interval != null
-        );
-
-        scheduler.registerTask(scheduledTask);
-        return scheduledTask;
-    }
 }
@@ -0,0 +1,95 @@
+package ru.nilsson03.library.bukkit.scheduler;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика выполнения задач с одним именем или всех задач плагина:
+ * количество запусков, ошибки, превышения длительности тика и распределение времени выполнения.
+ */
+public class TaskMetrics {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    TaskMetrics(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos, boolean failed, boolean overrun) {
+        count.increment();
+        totalNanos.add(nanos);
+        histogram.record(nanos);
+        if (failed) {
+            errors.increment();
+        }
+        if (overrun) {
+            overruns.increment();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return количество запусков в основном потоке, длившихся дольше одного тика
+     */
+    public long getOverrunCount() {
+        return overruns.sum();
+    }
+
+    public Duration getTotalTime() {
+        return Duration.ofNanos(totalNanos.sum());
+    }
+
+    public Duration getMeanTime() {
+        long count = getCount();
+        return count > 0 ? Duration.ofNanos(totalNanos.sum() / count) : Duration.ZERO;
+    }
+
+    /**
+     * @param percentile перцентиль от 0 до 100, например 50 или 99
+     */
+    public Duration getPercentile(double percentile) {
+        return Duration.ofNanos(histogram.percentile(percentile));
+    }
+
+    public Duration getMaxTime() {
+        return Duration.ofNanos(histogram.max());
+    }
+
+    void reset() {
+        count.reset();
+        errors.reset();
+        overruns.reset();
+        totalNanos.reset();
+        histogram.reset();
+    }
+
+    /**
+     * Форматирует статистику одной строкой для журнала или файла выгрузки.
+     */
+    public String format() {
+        return String.format(Locale.ROOT, "%s: runs=%d errors=%d overruns=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                name, getCount(), getErrorCount(), getOverrunCount(),
+                toMillis(getMeanTime()), toMillis(getPercentile(50)), toMillis(getPercentile(99)), toMillis(getMaxTime()));
+    }
+
+    private static double toMillis(Duration duration) {
+        return duration.toNanos() / 1_000_000.0;
+    }
+}
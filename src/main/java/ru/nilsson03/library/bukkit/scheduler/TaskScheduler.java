@@ -1,22 +1,348 @@
 package ru.nilsson03.library.bukkit.scheduler;
 
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * Планировщик задач плагина. Все задачи хранятся в двух иерархических колёсах таймеров - для основного потока
+ * и для асинхронных задач. Каждое колесо продвигается одной повторяющейся задачей Bukkit раз в тик,
+ * поэтому количество задач плагина не нагружает планировщик сервера. Наступившие задачи основного потока
+ * выполняются пачкой, а асинхронные передаются асинхронному исполнителю и выполняются параллельно.
+ * Для цепочек "асинхронная работа - действие в основном потоке" планировщик предоставляет ограниченный
+ * асинхронный исполнитель и исполнитель основного потока, который выполняет продолжения пачкой раз в тик.
+ */
 public class TaskScheduler {
+
+    static final long TICK_MILLIS = 50;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int ASYNC_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int ASYNC_MAX_IN_FLIGHT = 1024;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 5;
+
     private final JavaPlugin plugin;
     private final Map<UUID, ScheduledTask> tasks = new ConcurrentHashMap<>();
+    private final TimerWheel mainWheel = new TimerWheel();
+    private final TimerWheel asyncWheel = new TimerWheel();
+    private final long idPrefix = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong idSequence = new AtomicLong();
+    private final Map<Object, ScheduledTask> coalescedTasks = new ConcurrentHashMap<>();
+    private final Queue<BudgetedJob> budgetedJobs = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> mainQueue = new ConcurrentLinkedQueue<>();
+    private final Executor mainExecutor = this::executeOnMain;
+    private final AsyncExecutor asyncExecutor;
+    private final Executor asyncContinuationExecutor;
+    private final Map<String, TaskMetrics> metrics = new ConcurrentHashMap<>();
+    private final TaskMetrics pluginMetrics;
+    private final TaskMetrics budgetedMetrics;
+    private final TaskMetrics continuationMetrics;
+
+    private volatile boolean driversStarted;
+    private BukkitTask mainDriver;
+    private BukkitTask asyncDriver;
 
     public TaskScheduler(JavaPlugin plugin) {
         this.plugin = Objects.requireNonNull(plugin);
+        this.asyncExecutor = new AsyncExecutor(plugin.getName() + " Async", ASYNC_PARALLELISM, ASYNC_MAX_IN_FLIGHT);
+        this.asyncContinuationExecutor = asyncExecutor::executeContinuation;
+        this.pluginMetrics = new TaskMetrics(plugin.getName());
+        this.budgetedMetrics = metrics("TaskScheduler budgeted jobs");
+        this.continuationMetrics = metrics("TaskScheduler main continuations");
     }
 
     public TaskBuilder createTask(Runnable task) {
         return new TaskBuilder(this, plugin, task);
     }
 
+    /**
+     * Добавляет задачу в колесо соответствующего потока.
+     *
+     * @param delayTicks    задержка в тиках, 0 - ближайший тик
+     * @param intervalTicks период повтора в тиках или 0 для однократной задачи
+     */
+    ScheduledTask schedule(Runnable action, long delayTicks, long intervalTicks, boolean async) {
+        startDrivers();
+        TimerWheel wheel = async ? asyncWheel : mainWheel;
+        ScheduledTask task = newTask(wheel, action, intervalTicks);
+        wheel.add(task, delayTicks);
+        return task;
+    }
+
+    /**
+     * Добавляет однократную задачу с ключом. Если задача с тем же ключом ещё ожидает выполнения,
+     * новая отправка сливается с ней: выполнится одна задача с последним переданным действием.
+     *
+     * @param debounce true - каждая отправка переносит выполнение на задержку от момента отправки,
+     *                 false - выполнение остаётся на сроке первой отправки
+     */
+    ScheduledTask scheduleCoalesced(Object key, Runnable action, long delayTicks, boolean async, boolean debounce) {
+        Objects.requireNonNull(key, "Key cant be null!");
+        startDrivers();
+        TimerWheel wheel = async ? asyncWheel : mainWheel;
+        ScheduledTask[] result = new ScheduledTask[1];
+        coalescedTasks.compute(key, (k, pending) -> {
+            if (pending != null && pending.isPending()) {
+                if (pending.getWheel() == wheel) {
+                    // Задача, уже извлечённая из колеса, выполнится с прежним действием, поэтому отправка получает новую задачу
+                    boolean merged = debounce ? wheel.reschedule(pending, delayTicks) : wheel.contains(pending);
+                    if (merged) {
+                        pending.replaceAction(action);
+                        result[0] = pending;
+                        return pending;
+                    }
+                } else {
+                    pending.coalesceKey = null;
+                    pending.cancel();
+                }
+            }
+
+            ScheduledTask task = newTask(wheel, action, 0);
+            task.coalesceKey = k;
+            wheel.add(task, delayTicks);
+            result[0] = task;
+            return task;
+        });
+        return result[0];
+    }
+
+    /**
+     * Выполняет задачу в основном потоке через указанную задержку, сливая отправки с одинаковым ключом:
+     * пока задача ожидает выполнения, повторные отправки лишь заменяют её действие.
+     */
+    public ScheduledTask submitCoalesced(Object key, Duration delay, Runnable job) {
+        return createTask(job).withDelay(delay).coalesce(key).schedule();
+    }
+
+    /**
+     * Выполняет задачу в основном потоке, когда с последней отправки с тем же ключом пройдёт указанная задержка.
+     * Каждая повторная отправка заменяет действие и переносит выполнение.
+     */
+    public ScheduledTask submitDebounced(Object key, Duration delay, Runnable job) {
+        return createTask(job).withDelay(delay).debounce(key).schedule();
+    }
+
+    /**
+     * @return ожидающая задача с ключом слияния
+     */
+    public Optional<ScheduledTask> getCoalescedTask(Object key) {
+        return Optional.ofNullable(coalescedTasks.get(key));
+    }
+
+    /**
+     * Освобождает ключ слияния перед выполнением или при отмене задачи, чтобы следующие отправки создавали новую задачу.
+     */
+    void releaseCoalesceKey(Object key, ScheduledTask task) {
+        coalescedTasks.remove(key, task);
+    }
+
+    private ScheduledTask newTask(TimerWheel wheel, Runnable action, long intervalTicks) {
+        ScheduledTask task = new ScheduledTask(new UUID(idPrefix, idSequence.incrementAndGet()), this, wheel, action, intervalTicks);
+        registerTask(task);
+        return task;
+    }
+
+    /**
+     * Выполняет работу в основном потоке частями, тратя на неё не больше указанного времени за тик.
+     *
+     * @param units         части работы, итератор используется только из основного потока
+     * @param budgetPerTick время на выполнение частей за один тик
+     */
+    public BudgetedJob submitBudgeted(Iterator<? extends Runnable> units, Duration budgetPerTick) {
+        return submitBudgeted(units, budgetPerTick, -1);
+    }
+
+    /**
+     * Применяет действие к каждому элементу коллекции в основном потоке, тратя на это не больше
+     * указанного времени за тик. Коллекция не должна изменяться до завершения работы.
+     */
+    public <T> BudgetedJob submitBudgeted(Collection<T> items, Consumer<? super T> action, Duration budgetPerTick) {
+        Iterator<T> iterator = items.iterator();
+        Iterator<Runnable> units = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                T item = iterator.next();
+                return () -> action.accept(item);
+            }
+        };
+        return submitBudgeted(units, budgetPerTick, items.size());
+    }
+
+    private BudgetedJob submitBudgeted(Iterator<? extends Runnable> units, Duration budgetPerTick, long total) {
+        Objects.requireNonNull(units, "Units cant be null!");
+        if (budgetPerTick.isNegative() || budgetPerTick.isZero()) {
+            throw new IllegalArgumentException("Tick budget must be positive!");
+        }
+
+        startDrivers();
+        BudgetedJob job = new BudgetedJob(units, budgetPerTick.toNanos(), total);
+        budgetedJobs.add(job);
+        return job;
+    }
+
+    /**
+     * Выполняет вычисление в асинхронном исполнителе планировщика. Если исполнитель переполнен,
+     * future сразу завершается с {@link RejectedExecutionException}.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, asyncExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> runAsync(Runnable task) {
+        try {
+            return CompletableFuture.runAsync(task, asyncExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Выполняет вычисление в основном потоке на ближайшем тике.
+     */
+    public <T> CompletableFuture<T> supplyOnMain(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, mainExecutor);
+    }
+
+    public CompletableFuture<Void> runOnMain(Runnable task) {
+        return CompletableFuture.runAsync(task, mainExecutor);
+    }
+
+    /**
+     * Продолжает цепочку в основном потоке, например, чтобы применить к миру результат асинхронной загрузки.
+     */
+    public <T, R> CompletableFuture<R> thenOnMain(CompletableFuture<T> future, Function<? super T, ? extends R> action) {
+        return future.thenApplyAsync(action, mainExecutor);
+    }
+
+    /**
+     * Продолжает цепочку в асинхронном исполнителе, например, чтобы сохранить данные, собранные в основном потоке.
+     */
+    public <T, R> CompletableFuture<R> thenAsync(CompletableFuture<T> future, Function<? super T, ? extends R> action) {
+        return future.thenApplyAsync(action, asyncContinuationExecutor);
+    }
+
+    /**
+     * @return исполнитель, выполняющий задачи в основном потоке пачкой раз в тик
+     */
+    public Executor mainExecutor() {
+        return mainExecutor;
+    }
+
+    /**
+     * @return ограниченный асинхронный исполнитель планировщика
+     */
+    public Executor asyncExecutor() {
+        return asyncExecutor;
+    }
+
+    private void executeOnMain(Runnable task) {
+        startDrivers();
+        mainQueue.add(Objects.requireNonNull(task));
+    }
+
+    /**
+     * Возвращает статистику задач с указанным именем.
+     */
+    public Optional<TaskMetrics> getTaskMetrics(String name) {
+        return Optional.ofNullable(metrics.get(name));
+    }
+
+    public Collection<TaskMetrics> getTaskMetrics() {
+        return Collections.unmodifiableCollection(metrics.values());
+    }
+
+    /**
+     * @return суммарная статистика всех задач плагина
+     */
+    public TaskMetrics getPluginMetrics() {
+        return pluginMetrics;
+    }
+
+    public void resetMetrics() {
+        metrics.values().forEach(TaskMetrics::reset);
+        pluginMetrics.reset();
+    }
+
+    /**
+     * Периодически записывает статистику задач в файл, самые медленные по p99 задачи - первыми.
+     *
+     * @return задача выгрузки, которую можно отменить
+     */
+    public ScheduledTask startMetricsDump(File file, Duration interval) {
+        Objects.requireNonNull(file, "File cant be null!");
+        return createTask(() -> dumpMetrics(file))
+                .withName("TaskScheduler metrics dump")
+                .withDelay(interval)
+                .withInterval(interval)
+                .async()
+                .schedule();
+    }
+
+    /**
+     * Записывает текущую статистику задач в файл.
+     */
+    public void dumpMetrics(File file) {
+        List<TaskMetrics> sorted = new ArrayList<>(metrics.values());
+        sorted.sort(Comparator.comparing((TaskMetrics taskMetrics) -> taskMetrics.getPercentile(99)).reversed());
+
+        List<String> lines = new ArrayList<>(sorted.size() + 2);
+        lines.add("# " + LocalDateTime.now());
+        lines.add(pluginMetrics.format());
+        for (TaskMetrics taskMetrics : sorted) {
+            lines.add(taskMetrics.format());
+        }
+
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed to create directory: " + directory.getPath());
+            }
+            Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to dump task metrics: " + e.getMessage());
+        }
+    }
+
+    TaskMetrics metrics(String name) {
+        return metrics.computeIfAbsent(name, TaskMetrics::new);
+    }
+
+    /**
+     * Учитывает выполнение задачи в её статистике и статистике плагина.
+     * Превышение длительности тика учитывается только для задач основного потока.
+     */
+    void recordExecution(TaskMetrics taskMetrics, long nanos, boolean failed, boolean mainThread) {
+        boolean overrun = mainThread && nanos > TICK_NANOS;
+        taskMetrics.record(nanos, failed, overrun);
+        pluginMetrics.record(nanos, failed, overrun);
+    }
+
     synchronized void registerTask(ScheduledTask task) {
         tasks.put(task.getTaskId(), task);
     }
@@ -49,5 +375,117 @@ public class TaskScheduler {
 
     public void shutdown() {
         new ArrayList<>(tasks.keySet()).forEach(this::cancelTask);
+        budgetedJobs.forEach(BudgetedJob::cancel);
+        budgetedJobs.clear();
+        synchronized (this) {
+            if (mainDriver != null) {
+                mainDriver.cancel();
+                asyncDriver.cancel();
+                mainDriver = null;
+                asyncDriver = null;
+                driversStarted = false;
+            }
+        }
+
+        if (!asyncExecutor.shutdown(ASYNC_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+            plugin.getLogger().warning("Async tasks did not finish in " + ASYNC_SHUTDOWN_TIMEOUT + " seconds");
+        }
+        if (plugin.getServer().isPrimaryThread()) {
+            drainMainQueue();
+        }
+        mainQueue.clear();
+    }
+
+    /**
+     * Запускает задачи, продвигающие колёса, при первом планировании.
+     */
+    private void startDrivers() {
+        if (driversStarted) {
+            return;
+        }
+        synchronized (this) {
+            if (driversStarted) {
+                return;
+            }
+            mainDriver = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tickMain, 1, 1);
+            asyncDriver = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::tickAsync, 1, 1);
+            driversStarted = true;
+        }
+    }
+
+    private void tickMain() {
+        tick(mainWheel);
+        drainMainQueue();
+        if (budgetedJobs.isEmpty()) {
+            return;
+        }
+        budgetedJobs.removeIf(this::runSlice);
+    }
+
+    /**
+     * Выполняет часть бюджетной работы и учитывает её время в статистике бюджетных работ.
+     */
+    private boolean runSlice(BudgetedJob job) {
+        long start = System.nanoTime();
+        boolean done = job.runSlice();
+        CompletableFuture<Long> future = job.getFuture();
+        boolean failed = done && future.isCompletedExceptionally() && !future.isCancelled();
+        recordExecution(budgetedMetrics, System.nanoTime() - start, failed, true);
+        return done;
+    }
+
+    /**
+     * Выполняет продолжения, поставленные в очередь до начала обхода. Продолжения, добавленные
+     * во время обхода, выполняются на следующем тике. Время каждого продолжения учитывается в статистике продолжений.
+     */
+    private void drainMainQueue() {
+        for (int remaining = mainQueue.size(); remaining > 0; remaining--) {
+            Runnable task = mainQueue.poll();
+            if (task == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failed = true;
+                plugin.getLogger().severe("Task error: " + e.getMessage());
+            }
+            recordExecution(continuationMetrics, System.nanoTime() - start, failed, true);
+        }
+    }
+
+    private void tick(TimerWheel wheel) {
+        List<ScheduledTask> due = wheel.advance();
+        for (int i = 0; i < due.size(); i++) {
+            runTask(due.get(i));
+        }
+    }
+
+    /**
+     * Продвигает асинхронное колесо и передаёт наступившие задачи асинхронному исполнителю, чтобы долгая задача
+     * не задерживала остальные задачи тика. Задачи колеса уже приняты планировщиком, поэтому не отклоняются
+     * лимитом исполнителя. Повторяющаяся задача возвращается в колесо после завершения и не выполняется параллельно себе.
+     */
+    private void tickAsync() {
+        List<ScheduledTask> due = asyncWheel.advance();
+        for (int i = 0; i < due.size(); i++) {
+            ScheduledTask task = due.get(i);
+            try {
+                asyncExecutor.executeContinuation(() -> runTask(task));
+            } catch (RejectedExecutionException e) {
+                // Исполнитель остановлен вместе с планировщиком, задачи отменяются в shutdown()
+                return;
+            }
+        }
+    }
+
+    private void runTask(ScheduledTask task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            plugin.getLogger().severe("Task error: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,208 @@
+package ru.nilsson03.library.bukkit.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Иерархическое колесо таймеров с шагом в один серверный тик.
+ * Четыре уровня по 64 ячейки покрывают около 9 дней, более далёкие задачи хранятся в отдельном списке
+ * и перераспределяются при полном обороте колеса. Задачи связаны в двусвязные списки ячеек,
+ * поэтому добавление и отмена выполняются за O(1), а продвижение на тик - за O(1) плюс количество
+ * наступивших задач.
+ */
+final class TimerWheel {
+
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final int OVERFLOW = -1;
+    private static final int DETACHED = -2;
+
+    private final ScheduledTask[][] slots = new ScheduledTask[LEVELS][LEVEL_SIZE];
+    private ScheduledTask overflow;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Планирует задачу через указанное количество тиков. Задача с задержкой 0 выполняется на ближайшем тике.
+     * Задача, уже находящаяся в колесе, переносится на новый срок.
+     */
+    synchronized void add(ScheduledTask task, long delayTicks) {
+        if (task.wheelLevel != DETACHED) {
+            unlink(task);
+        } else {
+            size++;
+        }
+        task.deadline = currentTick + Math.max(delayTicks, 1) - 1;
+        insert(task);
+    }
+
+    /**
+     * Переносит задачу на новый срок, только если она ещё находится в колесе.
+     *
+     * @return false, если задача уже извлечена из колеса для выполнения или отменена
+     */
+    synchronized boolean reschedule(ScheduledTask task, long delayTicks) {
+        if (task.wheelLevel == DETACHED) {
+            return false;
+        }
+        add(task, delayTicks);
+        return true;
+    }
+
+    /**
+     * @return true, если задача ещё находится в колесе и не извлечена для выполнения
+     */
+    synchronized boolean contains(ScheduledTask task) {
+        return task.wheelLevel != DETACHED;
+    }
+
+    /**
+     * Убирает задачу из колеса.
+     *
+     * @return true, если задача ожидала выполнения
+     */
+    synchronized boolean remove(ScheduledTask task) {
+        if (task.wheelLevel == DETACHED) {
+            return false;
+        }
+        unlink(task);
+        size--;
+        return true;
+    }
+
+    /**
+     * Продвигает колесо на один тик и возвращает наступившие задачи в порядке добавления.
+     */
+    synchronized List<ScheduledTask> advance() {
+        if (size == 0) {
+            currentTick++;
+            return Collections.emptyList();
+        }
+
+        int index = (int) (currentTick & LEVEL_MASK);
+        ScheduledTask task = slots[0][index];
+        List<ScheduledTask> due = task != null ? new ArrayList<>() : Collections.emptyList();
+        slots[0][index] = null;
+        while (task != null) {
+            ScheduledTask next = task.wheelNext;
+            detach(task);
+            due.add(task);
+            size--;
+            task = next;
+        }
+
+        currentTick++;
+        cascade();
+        return due;
+    }
+
+    /**
+     * @return количество тиков до выполнения задачи или -1, если задача не в колесе
+     */
+    synchronized long ticksUntil(ScheduledTask task) {
+        return task.wheelLevel != DETACHED ? task.deadline - currentTick + 1 : -1;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int index = (int) ((currentTick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+            ScheduledTask task = slots[level][index];
+            slots[level][index] = null;
+            reinsert(task);
+        }
+
+        if ((currentTick & ((1L << (LEVEL_BITS * LEVELS)) - 1)) == 0) {
+            ScheduledTask task = overflow;
+            overflow = null;
+            reinsert(task);
+        }
+    }
+
+    private void reinsert(ScheduledTask task) {
+        while (task != null) {
+            ScheduledTask next = task.wheelNext;
+            detach(task);
+            insert(task);
+            task = next;
+        }
+    }
+
+    /**
+     * Помещает задачу на уровень старшей группы битов, в которой срок отличается от текущего тика.
+     * Новые задачи добавляются в конец ячейки, чтобы задачи одного тика выполнялись в порядке добавления.
+     */
+    private void insert(ScheduledTask task) {
+        long deadline = Math.max(task.deadline, currentTick);
+        long diff = deadline ^ currentTick;
+        int level = 0;
+        while (level < LEVELS && (diff >>> (LEVEL_BITS * (level + 1))) != 0) {
+            level++;
+        }
+
+        if (level == LEVELS) {
+            task.wheelLevel = OVERFLOW;
+            task.wheelNext = overflow;
+            if (overflow != null) {
+                overflow.wheelPrev = task;
+            }
+            overflow = task;
+            return;
+        }
+
+        int index = (int) ((deadline >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+        task.wheelLevel = level;
+        task.wheelSlot = index;
+        ScheduledTask head = slots[level][index];
+        if (head == null) {
+            slots[level][index] = task;
+            task.wheelTail = task;
+            return;
+        }
+        ScheduledTask tail = head.wheelTail;
+        tail.wheelNext = task;
+        task.wheelPrev = tail;
+        head.wheelTail = task;
+    }
+
+    private void unlink(ScheduledTask task) {
+        ScheduledTask prev = task.wheelPrev;
+        ScheduledTask next = task.wheelNext;
+        if (task.wheelLevel == OVERFLOW) {
+            if (prev == null) {
+                overflow = next;
+            }
+        } else if (prev == null) {
+            slots[task.wheelLevel][task.wheelSlot] = next;
+            if (next != null) {
+                next.wheelTail = task.wheelTail;
+            }
+        } else if (next == null) {
+            slots[task.wheelLevel][task.wheelSlot].wheelTail = prev;
+        }
+
+        if (prev != null) {
+            prev.wheelNext = next;
+        }
+        if (next != null) {
+            next.wheelPrev = prev;
+        }
+        detach(task);
+    }
+
+    private static void detach(ScheduledTask task) {
+        task.wheelPrev = null;
+        task.wheelNext = null;
+        task.wheelTail = null;
+        task.wheelLevel = DETACHED;
+    }
+}
@@ -53,6 +53,10 @@ public class Cuboid implements Iterable<Block>, Cloneable {
         return zMin;
     }
 
+    public String getWorldName() {
+        return worldName;
+    }
+
     public Location getMinimumPoint() {
         return new Location(Bukkit.getWorld(worldName), xMin, yMin, zMin);
     }
@@ -0,0 +1,46 @@
+package ru.nilsson03.library.collection;
+
+/**
+ * Множество примитивных ключей long на основе {@link LongObjectMap}.
+ * Класс не потокобезопасен.
+ */
+public class LongHashSet {
+
+    private final LongObjectMap<Boolean> map;
+
+    public LongHashSet() {
+        this.map = new LongObjectMap<>();
+    }
+
+    public LongHashSet(int expectedSize) {
+        this.map = new LongObjectMap<>(expectedSize);
+    }
+
+    public boolean add(long value) {
+        return map.put(value, Boolean.TRUE) == null;
+    }
+
+    public boolean remove(long value) {
+        return map.remove(value) != null;
+    }
+
+    public boolean contains(long value) {
+        return map.containsKey(value);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public long[] toArray() {
+        return map.keys();
+    }
+}
@@ -0,0 +1,224 @@
+package ru.nilsson03.library.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Хэш-таблица с открытой адресацией и примитивными ключами long.
+ * Поиск, вставка и удаление не создают объектов-обёрток для ключей.
+ * Класс не потокобезопасен.
+ *
+ * @param <V> тип значений
+ */
+public class LongObjectMap<V> {
+
+    private static final int DEFAULT_EXPECTED_SIZE = 8;
+    private static final int MIN_CAPACITY = 4;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    public LongObjectMap() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        allocate(tableSizeFor((int) (Math.max(0, expectedSize) / LOAD_FACTOR) + 1));
+    }
+
+    /**
+     * Коллбек для обхода пар ключ-значение без упаковки ключа.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        return index >= 0 ? (V) values[index] : null;
+    }
+
+    /**
+     * Помещает значение по ключу.
+     *
+     * @param key   ключ
+     * @param value значение, не может быть null
+     * @return предыдущее значение или null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+
+        V previous = (V) values[index];
+        values[index] = null;
+        size--;
+        shiftBack(index);
+        return previous;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value != null) {
+                consumer.accept(keys[i], (V) value);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> consumer) {
+        for (Object value : values) {
+            if (value != null) {
+                consumer.accept((V) value);
+            }
+        }
+    }
+
+    /**
+     * Возвращает копию всех значений таблицы.
+     * Копия позволяет изменять таблицу во время обхода результата.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                result.add((V) value);
+            }
+        }
+        return result;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int position = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[position++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Сдвигает элементы кластера назад после удаления,
+     * чтобы цепочки пробирования оставались непрерывными без надгробий.
+     */
+    private void shiftBack(int freed) {
+        int index = (freed + 1) & mask;
+        while (values[index] != null) {
+            int home = slot(keys[index]);
+            boolean movable = freed <= index
+                    ? home <= freed || home > index
+                    : home <= freed && home > index;
+            if (movable) {
+                keys[freed] = keys[index];
+                values[freed] = values[index];
+                values[index] = null;
+                freed = index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value != null) {
+                int index = slot(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        return Math.max(MIN_CAPACITY, n);
+    }
+}
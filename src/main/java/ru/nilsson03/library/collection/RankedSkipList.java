@@ -0,0 +1,279 @@
+package ru.nilsson03.library.collection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Индексированный список с пропусками: ключи упорядочены по убыванию очков,
+ * при равных очках выше стоит ключ, получивший их раньше.
+ * Каждая ссылка хранит количество пропускаемых узлов, поэтому изменение очков, удаление,
+ * поиск места ключа и ключа по месту выполняются за O(log n) без пересортировки.
+ * Места нумеруются с 1. Класс не потокобезопасен.
+ *
+ * @param <K> тип ключей
+ */
+public class RankedSkipList<K> {
+
+    private static final int MAX_LEVEL = 32;
+    private static final int LEVEL_PROBABILITY = 4;
+
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private final Node<K> head = new Node<>(null, 0, 0, MAX_LEVEL);
+    private int level = 1;
+    private int length;
+    private long sequence;
+
+    /**
+     * Запись диапазона мест.
+     */
+    public record Entry<K>(int rank, K key, long score) {
+    }
+
+    /**
+     * Устанавливает очки ключа, добавляя его при отсутствии. Если очки не изменились, место ключа сохраняется.
+     *
+     * @return true, если порядок изменился
+     */
+    public boolean update(K key, long score) {
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            if (node.score == score) {
+                return false;
+            }
+            unlink(node);
+        }
+
+        nodes.put(key, insert(key, score, sequence++));
+        return true;
+    }
+
+    public boolean remove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    /**
+     * Возвращает место ключа.
+     *
+     * @return место начиная с 1 или -1, если ключа нет
+     */
+    public int rankOf(K key) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            return -1;
+        }
+
+        int rank = 0;
+        Node<K> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && !before(node, x.next[i])) {
+                rank += x.span[i];
+                x = x.next[i];
+            }
+            if (x == node) {
+                return rank;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Возвращает ключ на указанном месте или null, если место вне списка.
+     */
+    public K keyAt(int rank) {
+        Node<K> node = nodeAt(rank);
+        return node != null ? node.key : null;
+    }
+
+    /**
+     * Возвращает очки ключа или значение по умолчанию, если ключа нет.
+     */
+    public long scoreOf(K key, long def) {
+        Node<K> node = nodes.get(key);
+        return node != null ? node.score : def;
+    }
+
+    public boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * Возвращает записи мест с from по to включительно за O(log n + to - from).
+     */
+    public List<Entry<K>> range(int from, int to) {
+        List<Entry<K>> entries = new ArrayList<>(Math.max(0, Math.min(to, size()) - Math.max(from, 1) + 1));
+        forEachInRange(from, to, (key, score) -> entries.add(new Entry<>(Math.max(from, 1) + entries.size(), key, score)));
+        return entries;
+    }
+
+    /**
+     * Обходит ключи мест с from по to включительно по порядку.
+     */
+    public void forEachInRange(int from, int to, ObjLongConsumer<K> consumer) {
+        from = Math.max(from, 1);
+        to = Math.min(to, size());
+        if (from > to) {
+            return;
+        }
+
+        Node<K> node = nodeAt(from);
+        for (int rank = from; rank <= to && node != null; rank++) {
+            consumer.accept(node.key, node.score);
+            node = node.next[0];
+        }
+    }
+
+    public List<K> keys() {
+        if (nodes.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<K> keys = new ArrayList<>(nodes.size());
+        for (Node<K> node = head.next[0]; node != null; node = node.next[0]) {
+            keys.add(node.key);
+        }
+        return keys;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    public void clear() {
+        nodes.clear();
+        for (int i = 0; i < MAX_LEVEL; i++) {
+            head.next[i] = null;
+            head.span[i] = 0;
+        }
+        level = 1;
+        length = 0;
+    }
+
+    private Node<K> nodeAt(int rank) {
+        if (rank < 1 || rank > size()) {
+            return null;
+        }
+
+        int traversed = 0;
+        Node<K> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.next[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K> insert(K key, long score, long order) {
+        Node<K>[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node<K> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.next[i] != null && before(x.next[i], score, order)) {
+                rank[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.span[i] = length;
+            }
+            level = nodeLevel;
+        }
+
+        Node<K> node = new Node<>(key, score, order, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        length++;
+        return node;
+    }
+
+    /**
+     * Исключает узел из всех уровней.
+     */
+    private void unlink(Node<K> node) {
+        Node<K> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && before(x.next[i], node.score, node.order)) {
+                x = x.next[i];
+            }
+            if (x.next[i] == node) {
+                x.span[i] += node.span[i] - 1;
+                x.next[i] = node.next[i];
+            } else {
+                x.span[i]--;
+            }
+        }
+
+        while (level > 1 && head.next[level - 1] == null) {
+            level--;
+        }
+        length--;
+    }
+
+    private static boolean before(Node<?> node, long score, long order) {
+        return node.score > score || (node.score == score && node.order < order);
+    }
+
+    private static boolean before(Node<?> node, Node<?> other) {
+        return before(node, other.score, other.order);
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextInt(LEVEL_PROBABILITY) == 0) {
+            level++;
+        }
+        return level;
+    }
+
+    private static final class Node<K> {
+
+        private final K key;
+        private final long score;
+        private final long order;
+        private final Node<K>[] next;
+        private final int[] span;
+
+        @SuppressWarnings("unchecked")
+        private Node(K key, long score, long order, int level) {
+            this.key = key;
+            this.score = score;
+            this.order = order;
+            this.next = new Node[level];
+            this.span = new int[level];
+        }
+    }
+}